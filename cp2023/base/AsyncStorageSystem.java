@@ -0,0 +1,33 @@
+package cp2023.base;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.exceptions.TransferException;
+
+public interface AsyncStorageSystem extends StorageSystem {
+
+    // Validates and admits transfer in calling thread, then returns without waiting for its turn.
+    // prepare() and perform() are run by the system executor once the transfer is allowed to do them.
+    // Returned future fails with exception thrown by prepare() or perform(), if any.
+    CompletableFuture<Void> executeAsync(ComponentTransfer transfer) throws TransferException;
+
+    // Same as execute, but gives up with TransferTimedOut if transfer does not get space on its destination
+    // within timeout, or with InterruptedException if thread is interrupted before that, as if it was never
+    // admitted. Transfer that got space is finished anyway, and interrupt then only sets interrupt status.
+    void execute(ComponentTransfer transfer, long timeout, TimeUnit unit)
+            throws TransferException, InterruptedException;
+
+    // Same as executeAsync, but future fails with TransferTimedOut if transfer does not get space on its
+    // destination within timeout. Until then, cancelling the future withdraws transfer as well.
+    CompletableFuture<Void> executeAsync(ComponentTransfer transfer, long timeout, TimeUnit unit)
+            throws TransferException;
+
+    // Admits all transfers in one step: if any of them is invalid, its exception is thrown and none is executed.
+    // Returns futures in the same order as transfers.
+    List<CompletableFuture<Void>> executeAllAsync(Collection<? extends ComponentTransfer> transfers)
+            throws TransferException;
+
+}
@@ -0,0 +1,19 @@
+package cp2023.base;
+
+// Transfer that can ask to get a slot on its destination device before other transfers waiting for it.
+// Plain ComponentTransfer behaves as one with priority 0 and no deadline.
+public interface PrioritizedComponentTransfer extends ComponentTransfer {
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // Higher priority goes first, but only by a bounded amount of time per level,
+    // so transfers waiting long enough still get their turn.
+    public default int getPriority() {
+        return 0;
+    }
+
+    // Value of System.nanoTime() by which transfer would like to get its slot, or NO_DEADLINE.
+    public default long getDeadline() {
+        return NO_DEADLINE;
+    }
+}
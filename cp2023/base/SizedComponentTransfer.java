@@ -0,0 +1,10 @@
+package cp2023.base;
+
+// Transfer adding component that takes more (or less) than one unit of device capacity.
+// Plain ComponentTransfer adds component of size 1. Moved and removed components keep size they were added with,
+// so for those transfers size is ignored.
+public interface SizedComponentTransfer extends ComponentTransfer {
+
+    // Has to be positive, in the same units as device capacities.
+    public long getComponentSize();
+}
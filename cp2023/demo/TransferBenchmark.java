@@ -0,0 +1,454 @@
+package cp2023.demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+
+// Measures throughput and latency of StorageSystem.execute.
+//
+// Usage: TransferBenchmark [name=value]...
+//   workload   random | chain | cycle                      (random)
+//   devices    number of devices                           (64)
+//   capacity   slots of every device                       (16)
+//   components components placed at start, random only     (devices * capacity / 2)
+//   threads    number of threads calling execute           (available processors, at least length
+//                                                           in chain and cycle)
+//   mix        add:remove:move weights, random only        (1:1:8)
+//   length     devices in one chain or cycle               (4)
+//   work       nanoseconds spent in prepare and in perform (0)
+//   warmup     seconds of warmup                           (2)
+//   seconds    seconds of measurement                      (5)
+//
+// In random workload every thread owns its components and never sends one to a device
+// that has no free slot left, so transfers do not wait for each other.
+// In chain workload every group of threads moves components along a line of full devices
+// that ends with one free slot, so each transfer waits for the one after it.
+// In cycle workload every group of threads rotates components around a ring of full devices,
+// so every round has to be resolved as a cycle.
+public final class TransferBenchmark {
+
+    private static final int MAX_SAMPLES_PER_THREAD = 1 << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> params = parseArgs(args);
+
+        String workload = params.getOrDefault("workload", "random");
+        int devices = Integer.parseInt(params.getOrDefault("devices", "64"));
+        int capacity = Integer.parseInt(params.getOrDefault("capacity", "16"));
+        int components = Integer.parseInt(params.getOrDefault("components", "" + devices * capacity / 2));
+        int[] mix = Arrays.stream(params.getOrDefault("mix", "1:1:8").split(":"))
+                .mapToInt(Integer::parseInt).toArray();
+        int length = Integer.parseInt(params.getOrDefault("length", "4"));
+        // Chain and cycle need a whole group of threads, whatever number of processors.
+        int processors = Runtime.getRuntime().availableProcessors();
+        int threads = Integer.parseInt(params.getOrDefault("threads",
+                "" + (workload.equals("random") ? processors : Math.max(length, processors))));
+        long work = Long.parseLong(params.getOrDefault("work", "0"));
+        long warmup = Long.parseLong(params.getOrDefault("warmup", "2"));
+        long seconds = Long.parseLong(params.getOrDefault("seconds", "5"));
+
+        Scenario scenario;
+        switch (workload) {
+            case "random":
+                scenario = new RandomScenario(devices, capacity, components, threads, mix, work);
+                break;
+            case "chain":
+                scenario = new GroupScenario(threads, length, capacity, work, false);
+                break;
+            case "cycle":
+                scenario = new GroupScenario(threads, length, capacity, work, true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+
+        System.out.println("Workload " + workload + " " + params);
+
+        run(scenario, threads, warmup * 1_000_000_000L);
+        Result result = run(scenario, threads, seconds * 1_000_000_000L);
+
+        result.print();
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> params = new HashMap<>();
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        return params;
+    }
+
+    private static Result run(Scenario scenario, int threads, long durationNanos) throws InterruptedException {
+        long[][] samples = new long[threads][];
+        long[] counts = new long[threads];
+        Thread[] workers = new Thread[threads];
+        long end = System.nanoTime() + durationNanos;
+
+        scenario.reset(end);
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                long[] latencies = new long[MAX_SAMPLES_PER_THREAD];
+                long cnt = 0;
+
+                while (scenario.keepGoing(thread)) {
+                    long start = System.nanoTime();
+                    if (!scenario.step(thread))
+                        continue;
+                    latencies[(int) (cnt++ % MAX_SAMPLES_PER_THREAD)] = System.nanoTime() - start;
+                }
+
+                samples[thread] = Arrays.copyOf(latencies, (int) Math.min(cnt, MAX_SAMPLES_PER_THREAD));
+                counts[thread] = cnt;
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        long elapsed = System.nanoTime() - start;
+
+        return new Result(samples, Arrays.stream(counts).sum(), elapsed);
+    }
+
+    private static final class Result {
+        private final long[] latencies;
+        private final long operations;
+        private final long elapsedNanos;
+
+        public Result(long[][] samples, long operations, long elapsedNanos) {
+            this.latencies = Arrays.stream(samples).flatMapToLong(Arrays::stream).sorted().toArray();
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public void print() {
+            System.out.printf("throughput  %.0f ops/s (%d ops in %.2f s)%n",
+                    operations * 1e9 / elapsedNanos, operations, elapsedNanos / 1e9);
+
+            if (latencies.length == 0)
+                return;
+
+            System.out.printf("latency us  p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                    percentile(0.5), percentile(0.9), percentile(0.99), percentile(0.999),
+                    latencies[latencies.length - 1] / 1e3);
+        }
+
+        private double percentile(double p) {
+            return latencies[(int) Math.min(latencies.length - 1, (long) (p * latencies.length))] / 1e3;
+        }
+    }
+
+    private interface Scenario {
+        // Called before warmup and before measurement, with time at which they end.
+        void reset(long end);
+
+        Boolean keepGoing(int thread);
+
+        // Executes one transfer, returns false if it did not find any transfer to do.
+        Boolean step(int thread);
+    }
+
+    private static final class RandomScenario implements Scenario {
+        private final int devices;
+        private final int capacity;
+        private final int threads;
+        private final int[] mix;
+        private final long work;
+        private final StorageSystem system;
+        // Components placed on or being moved to every device, so that no transfer ever has to wait.
+        private final AtomicIntegerArray reserved;
+        // Device of every component, or -1, indexed by component id (owned by thread id % threads).
+        private final int[] placement;
+        private final Random[] randoms;
+        private volatile long end;
+
+        public RandomScenario(int devices, int capacity, int components, int threads, int[] mix, long work) {
+            if (components > devices * capacity)
+                throw new IllegalArgumentException("More components than slots.");
+
+            this.devices = devices;
+            this.capacity = capacity;
+            this.threads = threads;
+            this.mix = mix;
+            this.work = work;
+            this.reserved = new AtomicIntegerArray(devices);
+            this.placement = new int[components * 2];
+            this.randoms = new Random[threads];
+
+            Arrays.fill(placement, -1);
+
+            int[] deviceIds = new int[devices];
+            int[] totalSlots = new int[devices];
+            for (int d = 0; d < devices; d++) {
+                deviceIds[d] = d;
+                totalSlots[d] = capacity;
+            }
+
+            int[] componentIds = new int[components];
+            int[] componentDevices = new int[components];
+            for (int c = 0; c < components; c++) {
+                componentIds[c] = c;
+                componentDevices[c] = c % devices;
+                placement[c] = c % devices;
+                reserved.incrementAndGet(c % devices);
+            }
+
+            system = StorageSystemFactory.newSystem(deviceIds, totalSlots, componentIds, componentDevices);
+        }
+
+        @Override
+        public void reset(long end) {
+            this.end = end;
+
+            for (int t = 0; t < threads; t++)
+                randoms[t] = new Random(t);
+        }
+
+        @Override
+        public Boolean keepGoing(int thread) {
+            return System.nanoTime() < end;
+        }
+
+        @Override
+        public Boolean step(int thread) {
+            Random random = randoms[thread];
+            int c = thread + threads * random.nextInt(placement.length / threads);
+            int src = placement[c];
+            int kind = pick(random);
+
+            if (src < 0) {
+                if (kind != 0)
+                    return false;
+                int dst = reserveDevice(random, -1);
+                if (dst < 0)
+                    return false;
+                execute(system, c, -1, dst, work);
+                placement[c] = dst;
+            } else if (kind == 1) {
+                execute(system, c, src, -1, work);
+                reserved.decrementAndGet(src);
+                placement[c] = -1;
+            } else if (kind == 2) {
+                int dst = reserveDevice(random, src);
+                if (dst < 0)
+                    return false;
+                execute(system, c, src, dst, work);
+                reserved.decrementAndGet(src);
+                placement[c] = dst;
+            } else {
+                return false;
+            }
+
+            return true;
+        }
+
+        private int pick(Random random) {
+            int r = random.nextInt(mix[0] + mix[1] + mix[2]);
+            return r < mix[0] ? 0 : r < mix[0] + mix[1] ? 1 : 2;
+        }
+
+        // Returns device with free slot other than except, with that slot already reserved, or -1.
+        private int reserveDevice(Random random, int except) {
+            for (int attempt = 0; attempt < 8; attempt++) {
+                int d = random.nextInt(devices);
+                int r = reserved.get(d);
+
+                if (d != except && r < capacity && reserved.compareAndSet(d, r, r + 1))
+                    return d;
+            }
+
+            return -1;
+        }
+    }
+
+    // Threads are split into groups of length (and the rest is idle). Group g uses its own devices.
+    private static final class GroupScenario implements Scenario {
+        private final int length;
+        private final int capacity;
+        private final long work;
+        private final Boolean cycle;
+        private final int groups;
+        private final StorageSystem system;
+        // Components currently placed on every device.
+        private final List<ConcurrentLinkedQueue<Integer>> onDevice = new ArrayList<>();
+        private final CyclicBarrier[] barriers;
+        private final int[] round;
+        // Decided once per round of every group, by the last thread to reach its barrier.
+        private final Boolean[] stop;
+        private volatile long end;
+
+        public GroupScenario(int threads, int length, int capacity, long work, Boolean cycle) {
+            this.length = length;
+            this.capacity = capacity;
+            this.work = work;
+            this.cycle = cycle;
+            this.groups = threads / length;
+
+            if (groups == 0)
+                throw new IllegalArgumentException("Need at least " + length + " threads.");
+
+            // Chain needs one more device at its end.
+            int groupDevices = cycle ? length : length + 1;
+            int devices = groups * groupDevices;
+            int[] deviceIds = new int[devices];
+            int[] totalSlots = new int[devices];
+            List<Integer> componentIds = new ArrayList<>();
+            List<Integer> componentDevices = new ArrayList<>();
+
+            for (int d = 0; d < devices; d++) {
+                deviceIds[d] = d;
+                totalSlots[d] = capacity;
+                onDevice.add(new ConcurrentLinkedQueue<>());
+
+                // Last device of chain starts with one free slot.
+                int filled = !cycle && d % groupDevices == length ? capacity - 1 : capacity;
+                for (int k = 0; k < filled; k++) {
+                    int c = componentIds.size();
+                    componentIds.add(c);
+                    componentDevices.add(d);
+                    onDevice.get(d).add(c);
+                }
+            }
+
+            system = StorageSystemFactory.newSystem(deviceIds, totalSlots,
+                    componentIds.stream().mapToInt(Integer::intValue).toArray(),
+                    componentDevices.stream().mapToInt(Integer::intValue).toArray());
+
+            barriers = new CyclicBarrier[groups];
+            stop = new Boolean[groups];
+            for (int g = 0; g < groups; g++) {
+                int group = g;
+                barriers[g] = new CyclicBarrier(length, () -> stop[group] = System.nanoTime() >= end);
+            }
+
+            round = new int[threads];
+        }
+
+        @Override
+        public void reset(long end) {
+            this.end = end;
+        }
+
+        @Override
+        public Boolean keepGoing(int thread) {
+            if (thread / length >= groups)
+                return false;
+
+            // All threads of group have to agree on the last round, so barrier action checks the time for them.
+            try {
+                barriers[thread / length].await();
+            } catch (InterruptedException | BrokenBarrierException e) {
+                throw new RuntimeException("panic: unexpected thread interruption", e);
+            }
+
+            return !stop[thread / length];
+        }
+
+        @Override
+        public Boolean step(int thread) {
+            int group = thread / length;
+            int j = thread % length;
+            int groupDevices = cycle ? length : length + 1;
+            int base = group * groupDevices;
+            int src;
+            int dst;
+
+            if (cycle) {
+                src = base + j;
+                dst = base + (j + 1) % length;
+            } else if (round[thread] % 2 == 0) {
+                src = base + j;
+                dst = base + j + 1;
+            } else {
+                src = base + j + 1;
+                dst = base + j;
+            }
+            round[thread]++;
+
+            Integer c = onDevice.get(src).poll();
+            execute(system, c, src, dst, work);
+            onDevice.get(dst).add(c);
+
+            return true;
+        }
+    }
+
+    private static void execute(StorageSystem system, int compId, int srcDevId, int dstDevId, long work) {
+        try {
+            system.execute(new BenchmarkTransfer(compId, srcDevId, dstDevId, work));
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " + e.toString(), e);
+        }
+    }
+
+    private static final class BenchmarkTransfer implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final long work;
+
+        public BenchmarkTransfer(int compId, int srcDevId, int dstDevId, long work) {
+            this.compId = new ComponentId(compId);
+            this.srcDevId = srcDevId >= 0 ? new DeviceId(srcDevId) : null;
+            this.dstDevId = dstDevId >= 0 ? new DeviceId(dstDevId) : null;
+            this.work = work;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+            spin(work);
+        }
+
+        @Override
+        public void perform() {
+            spin(work);
+        }
+
+        private static void spin(long nanos) {
+            if (nanos <= 0)
+                return;
+
+            long end = System.nanoTime() + nanos;
+            while (System.nanoTime() < end)
+                Thread.onSpinWait();
+        }
+    }
+}
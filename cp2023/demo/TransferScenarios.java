@@ -0,0 +1,552 @@
+package cp2023.demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.ComponentIsBeingOperatedOn;
+import cp2023.solution.ManagedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.TransferEvent;
+import cp2023.solution.TransferEventSubscription;
+
+// Small deterministic scenarios, each one checking a case that random stress hits too rarely to rely on.
+//
+// Usage: TransferScenarios [name=value]...
+//   only       comma separated names of scenarios to run  (all)
+//   timeout    milliseconds scenario may wait for anything (5000)
+//
+// Exits with status 1 if some scenario failed.
+public final class TransferScenarios {
+
+    private final long timeoutMillis;
+    private final List<String> failures = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = parseArgs(args);
+        long timeout = Long.parseLong(params.getOrDefault("timeout", "5000"));
+        TransferScenarios scenarios = new TransferScenarios(timeout);
+
+        Map<String, Scenario> all = new LinkedHashMap<>();
+        all.put("batch-dead-end", scenarios::batchDeadEnd);
+        all.put("batch-null", scenarios::batchNull);
+        all.put("slow-subscriber", scenarios::slowSubscriber);
+        all.put("interrupt-mid-transfer", scenarios::interruptMidTransfer);
+        all.put("caller-completes-future", scenarios::callerCompletesFuture);
+        all.put("rejecting-executor", scenarios::rejectingExecutor);
+        all.put("failing-prepare", scenarios::failingPrepare);
+        all.put("deferred-retry", scenarios::deferredRetry);
+        all.put("cycle-leaves-free-space", scenarios::cycleLeavesFreeSpace);
+
+        List<String> names = params.containsKey("only")
+                ? Arrays.asList(params.get("only").split(","))
+                : new ArrayList<>(all.keySet());
+        Boolean passed = true;
+
+        for (String name : names) {
+            Scenario scenario = all.get(name);
+
+            if (scenario == null)
+                throw new IllegalArgumentException("Unknown scenario " + name);
+
+            scenarios.failures.clear();
+
+            try {
+                scenario.run();
+            } catch (Exception e) {
+                scenarios.failures.add("threw " + e);
+            }
+
+            if (scenarios.failures.isEmpty()) {
+                System.out.println("ok      " + name);
+            } else {
+                passed = false;
+                System.out.println("FAILED  " + name);
+                scenarios.failures.forEach(f -> System.out.println("  " + f));
+            }
+        }
+
+        scenarios.executor.shutdownNow();
+
+        if (!passed)
+            System.exit(1);
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> params = new HashMap<>();
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        return params;
+    }
+
+    private TransferScenarios(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @FunctionalInterface
+    private interface Scenario {
+        void run() throws Exception;
+    }
+
+    // Batch whose walk for cycles first goes into a dead end after a move it shares with a cycle:
+    // 10 and 21 swap between 1 and 2, while 20 goes from 2 to full device 3. Swap has to be resolved
+    // at admission, without either of them waiting in line.
+    private void batchDeadEnd() throws Exception {
+        ManagedStorageSystem system = newSystem(Map.of(1, 1, 2, 2, 3, 1), Map.of(10, 1, 20, 2, 21, 2, 30, 3));
+        ConcurrentLinkedQueue<TransferEvent> events = new ConcurrentLinkedQueue<>();
+        TransferEventSubscription subscription = system.subscribeEvents(events::addAll);
+
+        List<CompletableFuture<Void>> results = system.executeAllAsync(List.of(
+                new Transfer(10, 1, 2), new Transfer(20, 2, 3), new Transfer(21, 2, 1)));
+
+        await(results.get(0), "Move of 10 from 1 to 2");
+        await(results.get(2), "Move of 21 from 2 to 1");
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (events.stream().filter(e -> e.getType() == TransferEvent.Type.FINISHED).count() < 2
+                && System.nanoTime() < deadline)
+            Thread.sleep(1);
+
+        subscription.close();
+
+        for (TransferEvent e : events) {
+            int c = e.getComponentId().intValue();
+
+            if (e.getType() == TransferEvent.Type.QUEUED && (c == 10 || c == 21))
+                failures.add("Component " + c + " waited in line, although batch swaps it.");
+        }
+    }
+
+    // Batch that fails on null transfer after some of its components were claimed leaves them free.
+    private void batchNull() throws Exception {
+        ManagedStorageSystem system = newSystem(Map.of(1, 2, 2, 2), Map.of(10, 1, 11, 1));
+        List<ComponentTransfer> batch = new ArrayList<>();
+
+        batch.add(new Transfer(10, 1, 2));
+        batch.add(new Transfer(11, 1, 2));
+        batch.add(null);
+
+        try {
+            system.executeAllAsync(batch);
+            failures.add("Batch with null transfer was admitted.");
+        } catch (RuntimeException e) {
+            // Expected.
+        }
+
+        await(system.executeAsync(new Transfer(10, 1, 2)), "Move of 10 after failed batch");
+        await(system.executeAsync(new Transfer(11, 1, 2)), "Move of 11 after failed batch");
+    }
+
+    // Subscriber that blocks in its consumer does not hold back transfers, even when system executor
+    // has a single thread.
+    private void slowSubscriber() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        ManagedStorageSystem system = newSystem(Map.of(1, 1, 2, 1), Map.of(10, 1), single);
+        CountDownLatch release = new CountDownLatch(1);
+        TransferEventSubscription subscription = system.subscribeEvents(batch -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        try {
+            for (int i = 0; i < 100 && failures.isEmpty(); i++) {
+                int from = i % 2 == 0 ? 1 : 2;
+                await(system.executeAsync(new Transfer(10, from, 3 - from)), "Move " + i + " of 10");
+            }
+        } finally {
+            release.countDown();
+            subscription.close();
+            single.shutdownNow();
+        }
+    }
+
+    // Caller of execute interrupted during prepare, while its transfer still has to wait for space to perform,
+    // finishes transfer and returns with interrupt status set, whether execute has timeout or not.
+    private void interruptMidTransfer() throws Exception {
+        interruptMidTransfer(false);
+        interruptMidTransfer(true);
+    }
+
+    // 10 moves from 1 to full device 2 and has to wait until 20, blocked in its prepare, leaves 2 for 3.
+    private void interruptMidTransfer(Boolean timed) throws Exception {
+        String variant = timed ? "Timed execute" : "Execute";
+        ManagedStorageSystem system = newSystem(Map.of(1, 1, 2, 1, 3, 1), Map.of(10, 1, 20, 2));
+        CountDownLatch prepared = new CountDownLatch(1);
+        CountDownLatch leave = new CountDownLatch(1);
+        Boolean[] interruptedInPerform = {null};
+        Boolean[] interruptedAtEnd = {null};
+        Exception[] failure = {null};
+
+        Transfer interrupted = new Transfer(10, 1, 2) {
+            @Override
+            public void prepare() {
+                Thread.currentThread().interrupt();
+                prepared.countDown();
+            }
+
+            @Override
+            public void perform() {
+                interruptedInPerform[0] = Thread.currentThread().isInterrupted();
+            }
+        };
+        Transfer leaving = new Transfer(20, 2, 3) {
+            @Override
+            public void prepare() {
+                try {
+                    leave.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        Thread caller = new Thread(() -> {
+            try {
+                if (timed)
+                    system.execute(interrupted, timeoutMillis, TimeUnit.MILLISECONDS);
+                else
+                    system.execute(interrupted);
+            } catch (Exception e) {
+                failure[0] = e;
+            }
+            interruptedAtEnd[0] = Thread.currentThread().isInterrupted();
+        });
+        caller.setUncaughtExceptionHandler((t, e) -> failure[0] = new RuntimeException(e));
+        caller.start();
+
+        // 10 waits for space, so it gets it once 20 starts prepare.
+        Thread.sleep(50);
+        CompletableFuture<Void> left = system.executeAsync(leaving);
+
+        if (!prepared.await(timeoutMillis, TimeUnit.MILLISECONDS))
+            failures.add(variant + ": prepare of 10 did not start.");
+
+        // Gives 10 time to start waiting for perform.
+        Thread.sleep(50);
+        leave.countDown();
+        await(left, "Move of 20 from 2 to 3");
+        caller.join(timeoutMillis);
+
+        if (caller.isAlive())
+            failures.add(variant + ": move of 10 did not finish.");
+        if (failure[0] != null)
+            failures.add(variant + ": move of 10 threw " + failure[0]);
+        if (!Boolean.FALSE.equals(interruptedInPerform[0]))
+            failures.add(variant + ": perform of 10 ran with interrupt status " + interruptedInPerform[0] + ".");
+        if (!Boolean.TRUE.equals(interruptedAtEnd[0]))
+            failures.add(variant + ": interrupt status of caller was not set again.");
+        if (!new DeviceId(2).equals(system.getComponentDevice(new ComponentId(10))))
+            failures.add(variant + ": 10 ended on " + system.getComponentDevice(new ComponentId(10)) + ".");
+
+        // Component is not left claimed.
+        await(system.executeAsync(new Transfer(10, 2, 1)), variant + ": move of 10 back");
+    }
+
+    // Caller that completes future of executeAsync while transfer prepares changes nothing about transfer:
+    // it still performs, and only then leaves its component on destination.
+    private void callerCompletesFuture() throws Exception {
+        ManagedStorageSystem system = newSystem(Map.of(1, 1, 2, 1), Map.of(10, 1));
+        CountDownLatch preparing = new CountDownLatch(1);
+        CountDownLatch finishPrepare = new CountDownLatch(1);
+        CountDownLatch performed = new CountDownLatch(1);
+
+        CompletableFuture<Void> result = system.executeAsync(new Transfer(10, 1, 2) {
+            @Override
+            public void prepare() {
+                preparing.countDown();
+                try {
+                    finishPrepare.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void perform() {
+                performed.countDown();
+            }
+        });
+
+        if (!preparing.await(timeoutMillis, TimeUnit.MILLISECONDS))
+            failures.add("Prepare of 10 did not start.");
+
+        result.completeExceptionally(new IllegalStateException("completed by caller"));
+        finishPrepare.countDown();
+
+        if (!performed.await(timeoutMillis, TimeUnit.MILLISECONDS))
+            failures.add("Perform of 10 was skipped after caller completed its future.");
+
+        await(executeWhenFree(system, new Transfer(10, 2, 1)), "Move of 10 back");
+    }
+
+    // Executor that rejects prepare of transfer woken up by another one fails only future of the former,
+    // which is still finished, and leaves its component free. 10 waits for full device 2, and gets its space
+    // under lock of 2, while 20 leaves it in calling thread.
+    private void rejectingExecutor() throws Exception {
+        AtomicBoolean rejecting = new AtomicBoolean(false);
+        Executor rejectingSometimes = r -> {
+            if (rejecting.get())
+                throw new RejectedExecutionException("rejected by scenario");
+            executor.execute(r);
+        };
+        ManagedStorageSystem system = newSystem(Map.of(1, 1, 2, 1, 3, 1), Map.of(10, 1, 20, 2), rejectingSometimes);
+
+        CompletableFuture<Void> rejected = system.executeAsync(new Transfer(10, 1, 2));
+        rejecting.set(true);
+
+        try {
+            system.execute(new Transfer(20, 2, 3));
+        } catch (Exception e) {
+            failures.add("Move of 20 that let 10 in threw " + e);
+        }
+
+        try {
+            rejected.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            failures.add("Move of 10 succeeded, although executor rejected it.");
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof RejectedExecutionException))
+                failures.add("Move of 10 failed with " + e.getCause() + " instead of rejection.");
+        } catch (TimeoutException e) {
+            failures.add("Move of 10 never finished after executor rejected it.");
+        }
+
+        rejecting.set(false);
+
+        // Transfer is finished as usual, only without prepare and perform.
+        if (!new DeviceId(2).equals(system.getComponentDevice(new ComponentId(10))))
+            failures.add("10 ended on " + system.getComponentDevice(new ComponentId(10)) + ".");
+        else
+            await(system.executeAsync(new Transfer(10, 2, 1)), "Move of 10 after rejection");
+    }
+
+    // Execute whose prepare throws finishes transfer before throwing: it frees space on source and claim.
+    private void failingPrepare() throws Exception {
+        ManagedStorageSystem system = newSystem(Map.of(1, 1, 2, 1), Map.of(10, 1));
+        RuntimeException thrown = new IllegalStateException("prepare failed in scenario");
+
+        try {
+            system.execute(new Transfer(10, 1, 2) {
+                @Override
+                public void prepare() {
+                    throw thrown;
+                }
+            });
+            failures.add("Execute did not throw failure of prepare.");
+        } catch (RuntimeException e) {
+            if (e != thrown)
+                failures.add("Execute threw " + e + " instead of failure of prepare.");
+        }
+
+        await(system.executeAsync(new Transfer(30, 0, 1)), "Adding 30 to source of failed move");
+
+        DeviceId device = system.getComponentDevice(new ComponentId(10));
+        if (device == null)
+            failures.add("10 disappeared.");
+        else
+            await(system.executeAsync(new Transfer(10, device.intValue(), 0)), "Removing 10 after failed move");
+    }
+
+    // Component deferred in a cycle that does not fit comes back to line without another QUEUED event, every time
+    // it is retried. 10 of size 2 swaps with 21 of size 1, which needs 22 to leave 2 first. Until then, 22 and 40
+    // swap between 2 and 3, and each of these swaps retries 21.
+    private void deferredRetry() throws Exception {
+        Map<DeviceId, Long> capacities = Map.of(new DeviceId(1), 2L, new DeviceId(2), 2L, new DeviceId(3), 1L);
+        Map<ComponentId, DeviceId> placement = Map.of(
+                new ComponentId(10), new DeviceId(1), new ComponentId(21), new DeviceId(2),
+                new ComponentId(22), new DeviceId(2), new ComponentId(40), new DeviceId(3));
+        ManagedStorageSystem system = StorageSystemFactory.newWeightedSystem(
+                capacities, placement, Map.of(new ComponentId(10), 2L), executor);
+        ConcurrentLinkedQueue<TransferEvent> events = new ConcurrentLinkedQueue<>();
+        TransferEventSubscription subscription = system.subscribeEvents(events::addAll);
+
+        CompletableFuture<Void> large = system.executeAsync(new Transfer(10, 1, 2));
+        Thread.sleep(50);
+        CompletableFuture<Void> small = system.executeAsync(new Transfer(21, 2, 1));
+        Thread.sleep(50);
+
+        for (int i = 0; i < 4; i++) {
+            int leaving = i % 2 == 0 ? 22 : 40;
+            List<CompletableFuture<Void>> swap = system.executeAllAsync(List.of(
+                    new Transfer(leaving, 2, 3), new Transfer(62 - leaving, 3, 2)));
+
+            await(swap.get(0), "Move of " + leaving + " from 2 to 3");
+            await(swap.get(1), "Move of " + (62 - leaving) + " from 3 to 2");
+        }
+
+        await(executeWhenFree(system, new Transfer(22, 2, 0)), "Removing 22");
+        await(large, "Move of 10 from 1 to 2");
+        await(small, "Move of 21 from 2 to 1");
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (events.stream().filter(e -> e.getType() == TransferEvent.Type.FINISHED).count() < 11
+                && System.nanoTime() < deadline)
+            Thread.sleep(1);
+
+        subscription.close();
+
+        long queued = events.stream().filter(e -> e.getType() == TransferEvent.Type.QUEUED
+                && e.getComponentId().intValue() == 21).count();
+
+        if (queued != 1)
+            failures.add("21 was queued " + queued + " times.");
+    }
+
+    // Cycle resolved on device where others wait takes space after component leaving it, and leaves free space
+    // to the one at the head of line. 30 of size 2 waits for 2, which has 1 free, and then 10 swaps with 21,
+    // blocked in its prepare. Once 22 leaves, 30 has 2 free and does not have to wait for 21.
+    private void cycleLeavesFreeSpace() throws Exception {
+        Map<DeviceId, Long> capacities = Map.of(new DeviceId(1), 1L, new DeviceId(2), 3L, new DeviceId(3), 2L);
+        Map<ComponentId, DeviceId> placement = Map.of(
+                new ComponentId(10), new DeviceId(1), new ComponentId(21), new DeviceId(2),
+                new ComponentId(22), new DeviceId(2), new ComponentId(30), new DeviceId(3));
+        ManagedStorageSystem system = StorageSystemFactory.newWeightedSystem(
+                capacities, placement, Map.of(new ComponentId(30), 2L), executor);
+        CountDownLatch preparing = new CountDownLatch(1);
+        CountDownLatch finishPrepare = new CountDownLatch(1);
+
+        CompletableFuture<Void> large = system.executeAsync(new Transfer(30, 3, 2));
+        Thread.sleep(50);
+        CompletableFuture<Void> incoming = system.executeAsync(new Transfer(10, 1, 2));
+        Thread.sleep(50);
+        CompletableFuture<Void> outgoing = system.executeAsync(new Transfer(21, 2, 1) {
+            @Override
+            public void prepare() {
+                preparing.countDown();
+                try {
+                    finishPrepare.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        try {
+            if (!preparing.await(timeoutMillis, TimeUnit.MILLISECONDS))
+                failures.add("Prepare of 21 did not start.");
+
+            await(system.executeAsync(new Transfer(22, 2, 0)), "Removing 22");
+
+            try {
+                large.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                failures.add("30 waited for 21, although cycle of 10 and 21 could leave it free space.");
+            }
+        } finally {
+            finishPrepare.countDown();
+        }
+
+        await(outgoing, "Move of 21 from 2 to 1");
+        await(incoming, "Move of 10 from 1 to 2");
+        await(large, "Move of 30 from 3 to 2");
+    }
+
+    // Devices and placement given by int ids, devices by their number of slots.
+    private ManagedStorageSystem newSystem(Map<Integer, Integer> deviceSlots, Map<Integer, Integer> placement) {
+        return newSystem(deviceSlots, placement, executor);
+    }
+
+    private ManagedStorageSystem newSystem(Map<Integer, Integer> deviceSlots, Map<Integer, Integer> placement,
+                                         Executor executor) {
+        Map<DeviceId, Integer> slots = new HashMap<>();
+        Map<ComponentId, DeviceId> components = new HashMap<>();
+
+        deviceSlots.forEach((d, s) -> slots.put(new DeviceId(d), s));
+        placement.forEach((c, d) -> components.put(new ComponentId(c), new DeviceId(d)));
+
+        return StorageSystemFactory.newAsyncSystem(slots, components, executor);
+    }
+
+    // Claim of component is released only after perform of its previous transfer returns, and nobody waits for it.
+    private CompletableFuture<Void> executeWhenFree(ManagedStorageSystem system, Transfer transfer) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (true) {
+            try {
+                return system.executeAsync(transfer);
+            } catch (ComponentIsBeingOperatedOn e) {
+                if (System.nanoTime() - deadline > 0)
+                    throw e;
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private void await(CompletableFuture<Void> result, String what) {
+        try {
+            result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            failures.add(what + " did not finish: " + e);
+        }
+    }
+
+    private static class Transfer implements ComponentTransfer {
+        private final int component;
+        private final int source;
+        private final int destination;
+
+        // Source or destination 0 stands for none.
+        public Transfer(int component, int source, int destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source == 0 ? null : new DeviceId(source);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination == 0 ? null : new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
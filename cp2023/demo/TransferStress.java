@@ -0,0 +1,1037 @@
+package cp2023.demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.SizedComponentTransfer;
+import cp2023.exceptions.ComponentAlreadyExists;
+import cp2023.exceptions.ComponentDoesNotExist;
+import cp2023.exceptions.ComponentDoesNotNeedTransfer;
+import cp2023.exceptions.ComponentIsBeingOperatedOn;
+import cp2023.exceptions.TransferException;
+import cp2023.exceptions.TransferTimedOut;
+import cp2023.solution.ManagedStorageSystem;
+import cp2023.solution.PlacementView;
+import cp2023.solution.StorageSystemFactory;
+
+// Stress test of storage system, which checks what TransferBurst can only print.
+//
+// Usage: TransferStress [name=value]...
+//   seed       seed of placement at start and of choices of every thread   (1)
+//   system     slots, sharded or weighted, see below                       (slots)
+//   call       execute, async (executeAsync) or batch (executeAllAsync)    (execute)
+//   devices    number of devices                                          (8)
+//   capacity   slots of every device, or its capacity in weighted system   (4)
+//   shards     shards of sharded system, neighbouring devices share one    (2)
+//   sizes      largest component size in weighted system                  (2 if weighted, 1 otherwise)
+//   components components placed at start                                 (devices * (capacity / sizes) * 3 / 4)
+//   ids        component ids in use, those not placed can be added        (components * 5 / 4)
+//   threads    number of threads calling system                           (max(8, 2 * available processors))
+//   batch      transfers of one executeAllAsync                           (4)
+//   mix        add:remove:move weights                                    (1:1:8)
+//   blind      percent of transfers sent to any device, not one with space (25)
+//   invalid    percent of transfers made invalid on purpose                (5)
+//   timed      percent of execute and executeAsync calls with timeout     (0)
+//   timeout    milliseconds of that timeout                               (1)
+//   work       nanoseconds spent in prepare and in perform                (0)
+//   jitter     percent of prepare and perform calls that yield first      (10)
+//   epoch      milliseconds of one epoch, history is checked after each   (1000)
+//   seconds    seconds of the whole run, long runs make a soak test       (10)
+//   stall      milliseconds without progress after which watchdog looks   (200)
+//
+// System slots is built from int ids by newSystem and runs asynchronous transfers on common pool. Sharded and
+// weighted ones run them on a pool of their own. Components of weighted system have sizes drawn from 1 to sizes,
+// and every component id keeps its size, in transfers adding it too.
+//
+// Threads pick components at random, so they meet on the same components and devices. Transfers sent blindly
+// wait for space and form chains and cycles, the others keep some space free, so that threads rarely all wait.
+// With call async or batch, thread waits for its transfers to finish before it picks the next ones, and batch is
+// made of distinct components. Seed fixes placement at start and sequence of choices of every thread,
+// but not the interleaving, which jitter varies further.
+//
+// Checked while running:
+//   no device is overfilled, space counting from start of perform of transfer coming in until end of prepare
+//   of transfer leaving, and no component is in two transfers at once;
+//   when no transfer finished for stall milliseconds, no waiting transfer would be let in to its destination
+//   by its free space (the largest one waiting there has to fit, as only the first in line goes in), and
+//   waiting moves form no cycle that fits (deadlock is reported once that lasts DEADLOCK_STALLS times longer,
+//   so that thread that was just slow to run is not mistaken for one). Otherwise all threads wait for device
+//   nobody leaves, or for a cycle too tight for its components, which is the workload's fault, and watchdog
+//   removes one component from such device.
+// Checked after every epoch, once all threads stopped:
+//   history of every component is linearizable: its successful transfers, in order of their prepares, form
+//   a chain starting at placement from start of epoch, and every failed one saw a state component was in
+//   at some moment while it ran, or timed out without having been prepared; transfers of batch that was
+//   rejected for another one of them only count as running at the same time as others;
+//   placement snapshot and used space of system match placement from history.
+// Exits with status 1 after epoch with a violation, or right away on deadlock.
+public final class TransferStress {
+
+    // Device of absent component, and source or destination of adding or removing.
+    private static final int NONE = -1;
+    private static final int MAX_REPORTED = 20;
+    private static final int DEADLOCK_STALLS = 5;
+
+    private final String call;
+    private final int devices;
+    private final int capacity;
+    private final int ids;
+    private final int threads;
+    private final int batch;
+    private final int[] mix;
+    private final int blind;
+    private final int invalid;
+    private final int timed;
+    private final long timeoutMillis;
+    private final long work;
+    private final int jitter;
+    private final long stallNanos;
+    // Size of every component id, 1 unless system is weighted.
+    private final int[] sizes;
+    private final ManagedStorageSystem system;
+
+    // Ticks ordering invocations, prepares and responses of all transfers.
+    private final AtomicLong clock = new AtomicLong(0);
+    // Device of every component according to finished performs, NONE if absent.
+    private final AtomicIntegerArray location;
+    // Space taken on every device, see class comment.
+    private final AtomicIntegerArray occupied;
+    // 1 while component is between start of prepare and end of perform.
+    private final AtomicIntegerArray active;
+    private final Random[] randoms;
+
+    // Transfers of current epoch, one list per thread, and one for watchdog.
+    private final List<List<Op>> histories = new ArrayList<>();
+    // Transfers every thread is executing right now, or null. Those that already responded are done.
+    private final AtomicReferenceArray<List<Op>> current;
+    private final AtomicLong progress = new AtomicLong(0);
+    private final ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<>();
+    // Held by watchdog while it executes transfer, and by main thread while it checks history.
+    private final Object watchdogLock = new Object();
+
+    private final CyclicBarrier epochStart;
+    private final CyclicBarrier epochEnd;
+    private volatile long epochDeadline;
+    private volatile Boolean finished = false;
+    private int[] startLocation;
+    private long startTick;
+
+    // Totals, changed only by main thread, and stalls broken by watchdog.
+    private long transfers = 0;
+    private long succeeded = 0;
+    private final AtomicLong unblocked = new AtomicLong(0);
+    private final Map<String, Long> failures = new TreeMap<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> params = parseArgs(args);
+
+        long epoch = Long.parseLong(params.getOrDefault("epoch", "1000"));
+        long seconds = Long.parseLong(params.getOrDefault("seconds", "10"));
+
+        System.out.println("Stress " + params);
+
+        TransferStress stress = new TransferStress(params);
+        Boolean passed = stress.run(epoch * 1_000_000L, seconds * 1_000_000_000L);
+
+        stress.printSummary(passed);
+
+        if (!passed)
+            System.exit(1);
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> params = new HashMap<>();
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            params.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        return params;
+    }
+
+    private TransferStress(Map<String, String> params) {
+        long seed = Long.parseLong(params.getOrDefault("seed", "1"));
+        String kind = params.getOrDefault("system", "slots");
+        call = params.getOrDefault("call", "execute");
+        devices = Integer.parseInt(params.getOrDefault("devices", "8"));
+        capacity = Integer.parseInt(params.getOrDefault("capacity", "4"));
+        int shards = Integer.parseInt(params.getOrDefault("shards", "2"));
+        int maxSize = Integer.parseInt(params.getOrDefault("sizes", kind.equals("weighted") ? "2" : "1"));
+        int components = Integer.parseInt(params.getOrDefault("components",
+                "" + devices * (capacity / maxSize) * 3 / 4));
+        ids = Integer.parseInt(params.getOrDefault("ids", "" + components * 5 / 4));
+        threads = Integer.parseInt(params.getOrDefault("threads",
+                "" + Math.max(8, 2 * Runtime.getRuntime().availableProcessors())));
+        batch = Integer.parseInt(params.getOrDefault("batch", "4"));
+        mix = Arrays.stream(params.getOrDefault("mix", "1:1:8").split(":"))
+                .mapToInt(Integer::parseInt).toArray();
+        blind = Integer.parseInt(params.getOrDefault("blind", "25"));
+        invalid = Integer.parseInt(params.getOrDefault("invalid", "5"));
+        timed = Integer.parseInt(params.getOrDefault("timed", "0"));
+        timeoutMillis = Long.parseLong(params.getOrDefault("timeout", "1"));
+        work = Long.parseLong(params.getOrDefault("work", "0"));
+        jitter = Integer.parseInt(params.getOrDefault("jitter", "10"));
+        stallNanos = Long.parseLong(params.getOrDefault("stall", "200")) * 1_000_000L;
+
+        if (!List.of("slots", "sharded", "weighted").contains(kind))
+            throw new IllegalArgumentException("Unknown system " + kind);
+        if (!List.of("execute", "async", "batch").contains(call))
+            throw new IllegalArgumentException("Unknown call " + call);
+        if (maxSize < 1 || maxSize > capacity || (maxSize > 1 && !kind.equals("weighted")))
+            throw new IllegalArgumentException("Sizes above 1 are only for weighted system, and at most capacity.");
+        // Every device fits capacity / maxSize components of any size, so random placement below always ends.
+        if (components > devices * (capacity / maxSize) || ids < components)
+            throw new IllegalArgumentException("More components than sure to fit, or fewer ids than components.");
+
+        this.location = new AtomicIntegerArray(ids);
+        this.occupied = new AtomicIntegerArray(devices);
+        this.active = new AtomicIntegerArray(ids);
+        this.randoms = new Random[threads];
+        this.current = new AtomicReferenceArray<>(threads);
+        this.epochStart = new CyclicBarrier(threads + 1);
+        this.epochEnd = new CyclicBarrier(threads + 1);
+
+        for (int t = 0; t < threads; t++)
+            randoms[t] = new Random(seed * 1_000_003 + t);
+        for (int t = 0; t <= threads; t++)
+            histories.add(new ArrayList<>());
+
+        // Random placement with components of total size at most capacity on every device.
+        Random random = new Random(seed);
+        int[] deviceIds = new int[devices];
+        int[] totalSlots = new int[devices];
+        int[] componentIds = new int[components];
+        int[] componentDevices = new int[components];
+
+        sizes = new int[ids];
+
+        for (int d = 0; d < devices; d++) {
+            deviceIds[d] = d;
+            totalSlots[d] = capacity;
+        }
+
+        for (int c = 0; c < ids; c++) {
+            location.set(c, NONE);
+            sizes[c] = maxSize == 1 ? 1 : 1 + random.nextInt(maxSize);
+        }
+
+        for (int j = 0; j < components; j++) {
+            int d;
+            do {
+                d = random.nextInt(devices);
+            } while (occupied.get(d) + sizes[j] > capacity);
+
+            componentIds[j] = j;
+            componentDevices[j] = d;
+            location.set(j, d);
+            occupied.addAndGet(d, sizes[j]);
+        }
+
+        if (kind.equals("slots")) {
+            system = StorageSystemFactory.newSystem(deviceIds, totalSlots, componentIds, componentDevices);
+            return;
+        }
+
+        Map<DeviceId, Integer> deviceSlots = new HashMap<>();
+        Map<DeviceId, Long> deviceCapacities = new HashMap<>();
+        Map<DeviceId, Integer> deviceShards = new HashMap<>();
+        Map<ComponentId, DeviceId> placement = new HashMap<>();
+        Map<ComponentId, Long> componentSizes = new HashMap<>();
+        Executor executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+
+        for (int d = 0; d < devices; d++) {
+            deviceSlots.put(new DeviceId(d), capacity);
+            deviceCapacities.put(new DeviceId(d), (long) capacity);
+            deviceShards.put(new DeviceId(d), d * shards / devices);
+        }
+
+        for (int j = 0; j < components; j++) {
+            placement.put(new ComponentId(j), new DeviceId(componentDevices[j]));
+            componentSizes.put(new ComponentId(j), (long) sizes[j]);
+        }
+
+        system = kind.equals("sharded")
+                ? StorageSystemFactory.newShardedSystem(deviceSlots, placement, deviceShards, executor)
+                : StorageSystemFactory.newWeightedSystem(deviceCapacities, placement, componentSizes, executor);
+    }
+
+    // Returns false if some violation was found.
+    private Boolean run(long epochNanos, long durationNanos) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers.add(new Thread(() -> work(thread)));
+        }
+
+        Thread watchdog = new Thread(this::watch);
+        watchdog.setDaemon(true);
+
+        for (Thread w : workers)
+            w.start();
+        watchdog.start();
+
+        long end = System.nanoTime() + durationNanos;
+        Boolean passed = true;
+
+        for (int epoch = 1; passed; epoch++) {
+            long start = System.nanoTime();
+            long unblockedBefore = unblocked.get();
+
+            startLocation = new int[ids];
+            for (int c = 0; c < ids; c++)
+                startLocation[c] = location.get(c);
+            startTick = clock.get();
+
+            epochDeadline = Math.min(start + epochNanos, end);
+            await(epochStart);
+            await(epochEnd);
+
+            synchronized (watchdogLock) {
+                passed = checkEpoch(epoch, System.nanoTime() - start, unblocked.get() - unblockedBefore);
+            }
+
+            if (System.nanoTime() >= end)
+                break;
+        }
+
+        finished = true;
+        await(epochStart);
+
+        for (Thread w : workers)
+            w.join();
+
+        return passed;
+    }
+
+    private void work(int thread) {
+        while (true) {
+            await(epochStart);
+
+            if (finished)
+                return;
+
+            while (System.nanoTime() < epochDeadline)
+                step(thread);
+
+            await(epochEnd);
+        }
+    }
+
+    private void step(int thread) {
+        Random random = randoms[thread];
+        List<Op> ops = new ArrayList<>();
+        Set<Integer> chosen = new HashSet<>();
+
+        for (int i = 0; i < (call.equals("batch") ? batch : 1); i++) {
+            Op op = choose(random);
+
+            if (op != null && chosen.add(op.component))
+                ops.add(op);
+        }
+
+        if (ops.isEmpty())
+            return;
+
+        current.set(thread, ops);
+
+        if (call.equals("execute")) {
+            execute(ops.get(0));
+        } else if (call.equals("async")) {
+            executeAsync(ops.get(0)).join();
+        } else {
+            executeBatch(ops);
+        }
+
+        current.set(thread, null);
+        histories.get(thread).addAll(ops);
+    }
+
+    // Random transfer, or null if component picked does not allow transfer of kind picked.
+    private Op choose(Random random) {
+        int c = random.nextInt(ids);
+        int loc = location.get(c);
+        int kind = pick(random);
+        int src;
+        int dst;
+
+        if (loc == NONE) {
+            if (kind != 0)
+                return null;
+            src = NONE;
+            dst = destination(random, c, NONE);
+        } else if (kind == 1) {
+            src = loc;
+            dst = NONE;
+        } else if (kind == 2 && devices > 1) {
+            src = loc;
+            dst = destination(random, c, loc);
+        } else {
+            return null;
+        }
+
+        if (random.nextInt(100) < invalid) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    // Probably wrong source.
+                    src = random.nextInt(devices);
+                    break;
+                case 1:
+                    // Adding component that probably exists.
+                    src = NONE;
+                    dst = random.nextInt(devices);
+                    break;
+                default:
+                    // Moving component where it already is.
+                    if (loc != NONE)
+                        dst = loc;
+                    else
+                        src = random.nextInt(devices);
+            }
+        }
+
+        Op op = new Op(c, src, dst);
+
+        // Batch has no timed variant.
+        op.timed = timed > 0 && !call.equals("batch") && random.nextInt(100) < timed;
+
+        return op;
+    }
+
+    // Device other than except, with free space for component c unless transfer is sent blindly,
+    // or if none was found quickly.
+    private int destination(Random random, int c, int except) {
+        Boolean sentBlindly = random.nextInt(100) < blind;
+        int d;
+        int attempt = 0;
+
+        do {
+            d = except == NONE ? random.nextInt(devices) : (except + 1 + random.nextInt(devices - 1)) % devices;
+        } while (!sentBlindly && occupied.get(d) + sizes[c] > capacity && ++attempt < 8);
+
+        return d;
+    }
+
+    private int pick(Random random) {
+        int r = random.nextInt(mix[0] + mix[1] + mix[2]);
+        return r < mix[0] ? 0 : r < mix[0] + mix[1] ? 1 : 2;
+    }
+
+    // Executes transfer in calling thread. Caller records it in history once it returns.
+    private void execute(Op op) {
+        op.invoked = clock.incrementAndGet();
+        Throwable failure = null;
+
+        try {
+            if (op.timed)
+                system.execute(new StressTransfer(op), timeoutMillis, TimeUnit.MILLISECONDS);
+            else
+                system.execute(new StressTransfer(op));
+        } catch (TransferException | InterruptedException | RuntimeException e) {
+            failure = e;
+        }
+
+        respond(op, failure);
+    }
+
+    // Returned future completes once transfer responded, successfully or not.
+    private CompletableFuture<Void> executeAsync(Op op) {
+        op.invoked = clock.incrementAndGet();
+        CompletableFuture<Void> result;
+
+        try {
+            if (op.timed)
+                result = system.executeAsync(new StressTransfer(op), timeoutMillis, TimeUnit.MILLISECONDS);
+            else
+                result = system.executeAsync(new StressTransfer(op));
+        } catch (TransferException | RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+
+        return result.handle((v, e) -> {
+            respond(op, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            return null;
+        });
+    }
+
+    // Returns once all transfers responded. If batch is rejected, only the transfer it was rejected for failed,
+    // and the others are marked as rejected with it.
+    private void executeBatch(List<Op> ops) {
+        List<StressTransfer> transfers = new ArrayList<>();
+        long invoked = clock.incrementAndGet();
+
+        for (Op op : ops) {
+            op.invoked = invoked;
+            transfers.add(new StressTransfer(op));
+        }
+
+        List<CompletableFuture<Void>> results;
+
+        try {
+            results = system.executeAllAsync(transfers);
+        } catch (TransferException | RuntimeException e) {
+            ComponentId rejectedFor = componentOf(e);
+
+            if (rejectedFor == null)
+                violation("Batch " + ops + " was rejected with " + e);
+
+            for (Op op : ops) {
+                op.rejectedWithBatch = rejectedFor == null || rejectedFor.intValue() != op.component;
+                respond(op, e);
+            }
+
+            return;
+        }
+
+        List<CompletableFuture<Void>> responses = new ArrayList<>();
+
+        for (int i = 0; i < ops.size(); i++) {
+            Op op = ops.get(i);
+            responses.add(results.get(i).handle((v, e) -> {
+                respond(op, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    // Component exception of rejected transfer is about, or null if it is no exception a transfer of stress gets.
+    private static ComponentId componentOf(Exception e) {
+        if (e instanceof ComponentAlreadyExists)
+            return ((ComponentAlreadyExists) e).getComponentId();
+        if (e instanceof ComponentDoesNotExist)
+            return ((ComponentDoesNotExist) e).getComponentId();
+        if (e instanceof ComponentDoesNotNeedTransfer)
+            return ((ComponentDoesNotNeedTransfer) e).getComponentId();
+        if (e instanceof ComponentIsBeingOperatedOn)
+            return ((ComponentIsBeingOperatedOn) e).getComponentId();
+        return null;
+    }
+
+    // Failure is null if transfer succeeded.
+    private void respond(Op op, Throwable failure) {
+        op.failure = failure;
+        op.responded = clock.incrementAndGet();
+        progress.incrementAndGet();
+
+        if (failure != null && !(failure instanceof TransferException))
+            violation(op + " threw " + failure);
+    }
+
+    private void watch() {
+        long seen = progress.get();
+        long since = System.nanoTime();
+
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1, stallNanos / 4_000_000L));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.nanoTime();
+
+            if (progress.get() != seen) {
+                seen = progress.get();
+                since = now;
+                continue;
+            }
+
+            if (now - since < stallNanos)
+                continue;
+
+            List<Op> pending = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                List<Op> ops = current.get(t);
+                if (ops == null)
+                    continue;
+                for (Op op : ops) {
+                    if (op.responded == 0)
+                        pending.add(op);
+                }
+            }
+
+            if (pending.isEmpty()) {
+                since = now;
+                continue;
+            }
+
+            synchronized (watchdogLock) {
+                if (unblock(pending, now - since))
+                    since = System.nanoTime();
+            }
+        }
+    }
+
+    // Called when transfers made no progress for a while, all of them waiting for space. Removes component
+    // all of them wait for and returns true, or returns false if it looks like a deadlock of the system,
+    // and exits once it lasted long enough.
+    private Boolean unblock(List<Op> pending, long stalledNanos) {
+        int[] placed = new int[devices];
+        Map<Integer, Integer> largestWaiting = new HashMap<>();
+        Map<Integer, List<Op>> leaving = new HashMap<>();
+        List<String> deadlock = new ArrayList<>();
+
+        for (int c = 0; c < ids; c++) {
+            if (location.get(c) != NONE)
+                placed[location.get(c)] += sizes[c];
+        }
+
+        for (Op op : pending) {
+            if (op.destination != NONE)
+                largestWaiting.merge(op.destination, sizes[op.component], Math::max);
+        }
+
+        for (Op op : pending) {
+            if (op.destination == NONE)
+                deadlock.add(op + " waits, although removing never does.");
+            else if (capacity - placed[op.destination] >= largestWaiting.get(op.destination))
+                deadlock.add(op + " waits, although its destination has " + (capacity - placed[op.destination])
+                        + " free space.");
+
+            if (op.source != NONE && op.destination != NONE)
+                leaving.computeIfAbsent(op.source, k -> new ArrayList<>()).add(op);
+        }
+
+        // Only the first cycle found is checked, so deadlock on another one is found once this one is broken.
+        List<Op> cycle = findCycle(leaving);
+        if (cycle != null && fits(cycle, placed))
+            deadlock.add("Cycle " + cycle + " is not resolved.");
+
+        if (!deadlock.isEmpty()) {
+            if (stalledNanos < DEADLOCK_STALLS * stallNanos)
+                return false;
+
+            System.out.println("DEADLOCK, no transfer finished for " + stalledNanos / 1_000_000L + " ms:");
+            for (String d : deadlock)
+                System.out.println("  " + d);
+            System.exit(1);
+        }
+
+        // Moves lead from any destination to device that nobody is leaving, or around cycle that does not fit.
+        int d = pending.get(0).destination;
+        Set<Integer> visited = new HashSet<>();
+        while (leaving.containsKey(d) && visited.add(d))
+            d = leaving.get(d).get(0).destination;
+
+        for (int c = 0; c < ids; c++) {
+            if (location.get(c) == d) {
+                Op op = new Op(c, d, NONE);
+                execute(op);
+                histories.get(threads).add(op);
+                unblocked.incrementAndGet();
+                return true;
+            }
+        }
+
+        return true;
+    }
+
+    // True if every component of cycle fits in free space of its destination plus space of component leaving it.
+    private Boolean fits(List<Op> cycle, int[] placed) {
+        for (int i = 0; i < cycle.size(); i++) {
+            Op op = cycle.get(i);
+            Op next = cycle.get((i + 1) % cycle.size());
+
+            if (sizes[op.component] > capacity - placed[op.destination] + sizes[next.component])
+                return false;
+        }
+
+        return true;
+    }
+
+    // Cycle of waiting moves, or null.
+    private static List<Op> findCycle(Map<Integer, List<Op>> leaving) {
+        Set<Integer> done = new HashSet<>();
+
+        for (int start : leaving.keySet()) {
+            List<Op> path = new ArrayList<>();
+            Set<Integer> onPath = new HashSet<>();
+            List<Op> cycle = findCycle(leaving, start, path, onPath, done);
+
+            if (cycle != null)
+                return cycle;
+        }
+
+        return null;
+    }
+
+    private static List<Op> findCycle(Map<Integer, List<Op>> leaving, int d, List<Op> path, Set<Integer> onPath,
+                                      Set<Integer> done) {
+        if (onPath.contains(d)) {
+            for (int i = 0; i < path.size(); i++) {
+                if (path.get(i).source == d)
+                    return new ArrayList<>(path.subList(i, path.size()));
+            }
+        }
+
+        if (!done.add(d))
+            return null;
+
+        onPath.add(d);
+
+        for (Op op : leaving.getOrDefault(d, List.of())) {
+            path.add(op);
+            List<Op> cycle = findCycle(leaving, op.destination, path, onPath, done);
+            path.remove(path.size() - 1);
+
+            if (cycle != null)
+                return cycle;
+        }
+
+        onPath.remove(d);
+
+        return null;
+    }
+
+    // Checks history of epoch that has just ended, and clears it. Returns false if some violation was found.
+    private Boolean checkEpoch(int epoch, long elapsedNanos, long epochUnblocked) {
+        Map<Integer, List<Op>> byComponent = new HashMap<>();
+        long ops = 0;
+        long ok = 0;
+
+        for (List<Op> history : histories) {
+            for (Op op : history) {
+                byComponent.computeIfAbsent(op.component, k -> new ArrayList<>()).add(op);
+                ops++;
+
+                if (op.failure == null)
+                    ok++;
+                else if (op.rejectedWithBatch)
+                    failures.merge("RejectedWithBatch", 1L, Long::sum);
+                else
+                    failures.merge(op.failure.getClass().getSimpleName(), 1L, Long::sum);
+            }
+            history.clear();
+        }
+
+        for (int c = 0; c < ids; c++) {
+            int end = checkComponent(c, byComponent.getOrDefault(c, List.of()));
+
+            if (end != location.get(c))
+                violation("Component " + c + " ends epoch on " + end + " according to its transfers, but on "
+                        + location.get(c) + " according to its performs.");
+        }
+
+        checkPlacement();
+
+        transfers += ops;
+        succeeded += ok;
+
+        System.out.printf("epoch %d  %.0f transfers/s  ok %d  failed %d  unblocked %d%n",
+                epoch, ops * 1e9 / elapsedNanos, ok, ops - ok, epochUnblocked);
+
+        return violations.isEmpty();
+    }
+
+    // Returns device component ends epoch on, according to its successful transfers.
+    private int checkComponent(int c, List<Op> ops) {
+        List<Op> successes = new ArrayList<>();
+
+        for (Op op : ops) {
+            if (op.failure == null)
+                successes.add(op);
+        }
+
+        successes.sort(Comparator.comparingLong(op -> op.prepared));
+
+        // Windows of ticks {from, to, device} in which component surely was on device, disjoint and in order,
+        // since transfer starts claim only after the one before it finished.
+        List<long[]> settled = new ArrayList<>();
+        long from = startTick;
+        int loc = startLocation[c];
+        long longest = 0;
+
+        for (Op s : successes) {
+            if (s.prepared == NONE)
+                violation(s + " succeeded without prepare.");
+            if (s.source != loc)
+                violation(s + " succeeded while component was on " + loc + ".");
+            if (s.source == s.destination)
+                violation(s + " succeeded without changing anything.");
+
+            if (from <= s.invoked)
+                settled.add(new long[]{from, s.invoked, loc});
+
+            loc = s.destination;
+            from = s.responded;
+            longest = Math.max(longest, s.responded - s.invoked);
+        }
+        settled.add(new long[]{from, Long.MAX_VALUE, loc});
+
+        // While successful transfer ran, component was on its source or its destination.
+        List<Op> moving = new ArrayList<>(successes);
+        moving.sort(Comparator.comparingLong(op -> op.invoked));
+
+        // Any other transfer that ran at the same time could hold component, successful or not.
+        List<Op> byInvocation = new ArrayList<>(ops);
+        byInvocation.sort(Comparator.comparingLong(op -> op.invoked));
+        long latestResponse = 0;
+
+        for (int i = 0; i < byInvocation.size(); i++) {
+            Op op = byInvocation.get(i);
+            Boolean overlapped = latestResponse >= op.invoked
+                    || (i + 1 < byInvocation.size() && byInvocation.get(i + 1).invoked <= op.responded);
+            latestResponse = Math.max(latestResponse, op.responded);
+
+            if (op.failure == null || op.rejectedWithBatch || !(op.failure instanceof TransferException))
+                continue;
+
+            Set<Integer> possible = new HashSet<>();
+
+            for (int j = firstEndingAtLeast(settled, op.invoked); j < settled.size()
+                    && settled.get(j)[0] <= op.responded; j++)
+                possible.add((int) settled.get(j)[2]);
+
+            for (int j = firstInvokedAtLeast(moving, op.invoked - longest); j < moving.size()
+                    && moving.get(j).invoked <= op.responded; j++) {
+                if (moving.get(j).responded >= op.invoked) {
+                    possible.add(moving.get(j).source);
+                    possible.add(moving.get(j).destination);
+                }
+            }
+
+            Boolean justified;
+
+            if (op.failure instanceof ComponentIsBeingOperatedOn)
+                justified = overlapped;
+            else if (op.failure instanceof ComponentDoesNotExist)
+                justified = possible.stream().anyMatch(d -> d != op.source);
+            else if (op.failure instanceof ComponentAlreadyExists)
+                justified = possible.stream().anyMatch(d -> d != NONE);
+            else if (op.failure instanceof ComponentDoesNotNeedTransfer)
+                justified = possible.contains(op.destination);
+            else if (op.failure instanceof TransferTimedOut)
+                justified = op.timed && op.prepared == NONE;
+            else
+                justified = false;
+
+            if (!justified)
+                violation(op + " failed with " + op.failure + ", while component could only be on " + possible + ".");
+        }
+
+        return loc;
+    }
+
+    private static int firstEndingAtLeast(List<long[]> windows, long tick) {
+        int lo = 0;
+        int hi = windows.size();
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (windows.get(mid)[1] < tick)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    private static int firstInvokedAtLeast(List<Op> ops, long tick) {
+        int lo = 0;
+        int hi = ops.size();
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ops.get(mid).invoked < tick)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    // Compares placement when all threads stopped with space taken and with snapshot of system.
+    private void checkPlacement() {
+        int[] placed = new int[devices];
+
+        for (int c = 0; c < ids; c++) {
+            if (location.get(c) != NONE)
+                placed[location.get(c)] += sizes[c];
+        }
+
+        for (int d = 0; d < devices; d++) {
+            if (placed[d] != occupied.get(d))
+                violation("Device " + d + " holds components of size " + placed[d] + ", but " + occupied.get(d)
+                        + " space is taken.");
+
+            long used = system.getDeviceUsedSpace(new DeviceId(d));
+            if (used != placed[d])
+                violation("Device " + d + " holds components of size " + placed[d] + ", but system counts "
+                        + used + " space as used.");
+        }
+
+        PlacementView view = system.snapshotPlacement();
+
+        if (!view.isConsistent() || !view.getInFlightTransfers().isEmpty())
+            violation("Snapshot of stopped system is not consistent, or has transfers in flight: "
+                    + view.getInFlightTransfers());
+
+        int expected = 0;
+
+        for (int c = 0; c < ids; c++) {
+            DeviceId d = view.getComponentDevice(new ComponentId(c));
+            int actual = d == null ? NONE : d.intValue();
+
+            if (actual != location.get(c))
+                violation("Component " + c + " is on " + actual + " according to snapshot, but on "
+                        + location.get(c) + " according to history.");
+            if (location.get(c) != NONE)
+                expected++;
+        }
+
+        if (view.getPlacement().size() != expected)
+            violation("Snapshot holds " + view.getPlacement().size() + " components instead of " + expected + ".");
+    }
+
+    private void violation(String description) {
+        violations.add(description);
+    }
+
+    private void printSummary(Boolean passed) {
+        System.out.printf("transfers %d  ok %d  failed %d  unblocked by watchdog %d%n",
+                transfers, succeeded, transfers - succeeded, unblocked.get());
+        System.out.println("failures  " + failures);
+
+        System.out.println("cycles    " + system.getMetrics().getCyclesResolved());
+
+        if (passed) {
+            System.out.println("PASSED");
+            return;
+        }
+
+        System.out.println("FAILED with " + violations.size() + " violations:");
+        violations.stream().limit(MAX_REPORTED).forEach(v -> System.out.println("  " + v));
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch (InterruptedException | BrokenBarrierException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static final class Op {
+        private final int component;
+        private final int source;
+        private final int destination;
+        private Boolean timed = false;
+        private long invoked;
+        private volatile long prepared = NONE;
+        // 0 until transfer responded, set by thread of system executor for asynchronous one.
+        private volatile long responded;
+        // Null if transfer succeeded.
+        private Throwable failure = null;
+        // Transfer of batch rejected for another transfer of it, so it was only claimed for a moment.
+        private Boolean rejectedWithBatch = false;
+
+        public Op(int component, int source, int destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public String toString() {
+            return "Transfer of " + component + " from " + source + " to " + destination;
+        }
+    }
+
+    private final class StressTransfer implements SizedComponentTransfer {
+        private final Op op;
+
+        public StressTransfer(Op op) {
+            this.op = op;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(op.component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return op.source == NONE ? null : new DeviceId(op.source);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return op.destination == NONE ? null : new DeviceId(op.destination);
+        }
+
+        @Override
+        public long getComponentSize() {
+            return sizes[op.component];
+        }
+
+        @Override
+        public void prepare() {
+            op.prepared = clock.incrementAndGet();
+
+            if (!active.compareAndSet(op.component, 0, 1))
+                violation(op + " prepares while component is in other transfer.");
+
+            delay();
+
+            // Space is given away once prepare returns, so it is counted as free right before.
+            if (op.source != NONE)
+                occupied.addAndGet(op.source, -sizes[op.component]);
+        }
+
+        @Override
+        public void perform() {
+            if (op.destination != NONE && occupied.addAndGet(op.destination, sizes[op.component]) > capacity)
+                violation(op + " performs on device " + op.destination + " that is full.");
+
+            delay();
+
+            location.set(op.component, op.destination);
+            active.set(op.component, 0);
+        }
+
+        private void delay() {
+            if (jitter > 0 && ThreadLocalRandom.current().nextInt(100) < jitter)
+                Thread.yield();
+
+            if (work <= 0)
+                return;
+
+            long end = System.nanoTime() + work;
+            while (System.nanoTime() < end)
+                Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+public final class ComponentDoesNotFit extends TransferException {
+
+    private static final long serialVersionUID = 6204385917732095415L;
+
+    private final ComponentId compId;
+    private final DeviceId    devId;
+
+    public ComponentDoesNotFit(ComponentId compId, long size, DeviceId devId, long capacity) {
+        super("component " + compId.toString() + " of size " + size +
+                " does not fit on device " + devId.toString() + " of capacity " + capacity);
+        this.compId = compId;
+        this.devId = devId;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    public DeviceId getDeviceId() {
+        return this.devId;
+    }
+}
@@ -0,0 +1,27 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+public final class TransferTimedOut extends TransferException {
+
+    private static final long serialVersionUID = -3120457619824350417L;
+
+    private final ComponentId compId;
+    private final DeviceId    devId;
+
+    public TransferTimedOut(ComponentId compId, DeviceId devId) {
+        super("transfer of component " + compId.toString() + " timed out waiting for space on device " +
+                devId.toString());
+        this.compId = compId;
+        this.devId = devId;
+    }
+
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    public DeviceId getDeviceId() {
+        return this.devId;
+    }
+}
@@ -0,0 +1,162 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Fills device map, placement table and indexes of devices of new system in parallel, splitting input arrays
+// into ranges handled by fork-join tasks. Maps are presized and lock only one of their segments per insert,
+// so tasks rarely meet. Components at rest get no Component objects, only entries in placement table.
+// Performs the same validation as sequential construction, but when input has several errors,
+// any of them may be reported.
+final class BulkLoad {
+    // Ranges at most this long are not split further.
+    private static final int LEAF_SIZE = 1 << 14;
+
+    private BulkLoad() {
+    }
+
+    // Device deviceIds[i] has capacity deviceCapacities[i] and index i, under which it is put in devicesByIndex.
+    public static void loadDevices(IntConcurrentMap<Device> devices, Device[] devicesByIndex, int[] deviceIds,
+                                   long[] deviceCapacities) {
+        inParallel(deviceIds.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                DeviceId deviceId = new DeviceId(deviceIds[i]);
+
+                if (deviceCapacities[i] <= 0)
+                    throw new IllegalArgumentException("Device " + deviceId + " with size " + deviceCapacities[i]
+                            + " is not allowed.");
+
+                Device device = new Device(deviceId, i, deviceCapacities[i], 0);
+
+                if (devices.putIfAbsent(deviceIds[i], device) != null)
+                    throw new IllegalArgumentException("Attempt at creating StorageSystem with duplicate device.");
+
+                devicesByIndex[i] = device;
+            }
+        });
+    }
+
+    // Component componentIds[j] of size componentSizes[j] (1 if componentSizes is null) is placed
+    // on componentDevices[j]. Devices have to be loaded already.
+    // Components are counted per device while they are checked, so that index of every device is presized
+    // before it is filled, and never rebuilt during the load.
+    public static void loadComponents(IntConcurrentMap<Device> devices, PlacementTable placementTable,
+                                      int[] componentIds, int[] componentDevices, long[] componentSizes) {
+        Device[] loaded = new Device[devices.size()];
+        AtomicIntegerArray placedCounts = new AtomicIntegerArray(loaded.length);
+        int[] placedOn = new int[componentIds.length];
+
+        devices.forEach((id, d) -> loaded[d.getIndex()] = d);
+
+        inParallel(componentIds.length, (from, to) -> {
+            // Components of one device often come one after another, so their sizes are summed together.
+            Device counted = null;
+            long cnt = 0;
+            int placed = 0;
+
+            for (int j = from; j < to; j++) {
+                Device d = counted != null && counted.getId().intValue() == componentDevices[j]
+                        ? counted : devices.get(componentDevices[j]);
+
+                if (d == null)
+                    throw new IllegalArgumentException("Attempt at creating StorageSystem with device without declared size.");
+
+                long size = componentSizes == null ? 1 : componentSizes[j];
+
+                if (size <= 0)
+                    throw new IllegalArgumentException("Component " + new ComponentId(componentIds[j]) + " with size "
+                            + size + " is not allowed.");
+
+                if (!placementTable.putIfAbsent(componentIds[j], d.getIndex(), size))
+                    throw new IllegalArgumentException("Attempt at creating StorageSystem with duplicate component.");
+
+                placedOn[j] = d.getIndex();
+
+                if (d != counted) {
+                    if (counted != null) {
+                        counted.addUsedSpaceAtomically(cnt);
+                        placedCounts.addAndGet(counted.getIndex(), placed);
+                    }
+                    counted = d;
+                    cnt = 0;
+                    placed = 0;
+                }
+                cnt += size;
+                placed++;
+            }
+
+            if (counted != null) {
+                counted.addUsedSpaceAtomically(cnt);
+                placedCounts.addAndGet(counted.getIndex(), placed);
+            }
+        });
+
+        inParallel(loaded.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                if (loaded[i].getCapacity() < loaded[i].getUsedSpace())
+                    throw new IllegalArgumentException("Device " + loaded[i].getId() + " has more components than size.");
+
+                loaded[i].presizePlaced(placedCounts.get(i));
+            }
+        });
+
+        inParallel(componentIds.length, (from, to) -> {
+            for (int j = from; j < to; j++)
+                loaded[placedOn[j]].addPlaced(componentIds[j], componentSizes == null ? 1 : componentSizes[j]);
+        });
+    }
+
+    @FunctionalInterface
+    private interface RangeAction {
+        void run(int from, int to);
+    }
+
+    // Runs action on ranges covering 0 to n. First exception thrown by action is rethrown here as it is,
+    // and ranges that have not started yet are skipped.
+    private static void inParallel(int n, RangeAction action) {
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        new RangeTask(0, n, action, failure).invoke();
+
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 3917262148506215470L;
+
+        private final int from;
+        private final int to;
+        private final RangeAction action;
+        private final AtomicReference<RuntimeException> failure;
+
+        public RangeTask(int from, int to, RangeAction action, AtomicReference<RuntimeException> failure) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (failure.get() != null)
+                return;
+
+            if (to - from <= LEAF_SIZE) {
+                try {
+                    action.run(from, to);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, mid, action, failure), new RangeTask(mid, to, action, failure));
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.PrioritizedComponentTransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// State of component that is being transferred, created when transfer claims it and dropped when claim ends.
+// Components at rest are kept only in PlacementTable of system.
+// Claim allocates one Component with its three Handoffs (a field each), and nothing more until transfer
+// has to wait. It is not pooled: phase tasks, continuations and whoever waits on its handoffs still hold it
+// after claim ends, and transferred map removes claim by identity, so reused Component could be taken
+// for next transfer of the same component. Pooling would need to know when the last of them let go,
+// which is more than what this short-lived allocation costs.
+final class Component implements HandoffPolicy.Candidate {
+    private final ComponentId id;
+    // In the same units as device capacities.
+    private final long size;
+    private volatile Device currentDevice;
+    // Device component is moved to (only used during transfer).
+    private volatile Device destinationDevice = null;
+    // Whether destinationDevice is set for current transfer, read by placement snapshots.
+    private volatile boolean inFlight = false;
+    private final Handoff wakeCallToPrepare = new Handoff();
+    private final Handoff wakeCallToPerform = new Handoff();
+    // Permit of IoLimit, used for prepare and then again for perform, and reset after each.
+    private final Handoff wakeCallToIo = new Handoff();
+    // Components that reserved part of space after this component, the first one and all others
+    // (only used during transfer, changed only with currentDevice access).
+    private Component nextToPerform = null;
+    private ArrayList<Component> moreToPerform = null;
+    // Part of space after this component that nobody reserved yet (only used during transfer).
+    private long unreservedSpace;
+    // Number of transfers leaving destinationDevice whose prepare has to end before this one can perform
+    // (changed only with destinationDevice access).
+    private int pendingHandoffs = 0;
+    // Device in which prepareWaitLineIn this component currently waits (changed only with that device access).
+    private volatile Device waitingIn = null;
+    // Whether component moves between shards of wait-for graph and is counted by it as one that may wait.
+    private volatile boolean waitingAcrossShards = false;
+    // Devices of cycle on which component was deferred, see WaitForGraph (changed only with its access).
+    private List<Device> deferredOn = null;
+    // Time at which component started waiting in waitingIn (changed only with that device access).
+    private long waitingSince = 0;
+    // Urgency of current transfer, see WaitLine, and place of component in waitingIn.
+    private int priority = 0;
+    private long deadline = PrioritizedComponentTransfer.NO_DEADLINE;
+    private long due = 0;
+    private long arrival = 0;
+    private int waitLineIndex = -1;
+    // Neighbours among components waiting in waitingIn that come from the same device, see Device.
+    private Component previousWaitingFrom = null;
+    private Component nextWaitingFrom = null;
+    // Timing used by HandoffPolicy: start of current transfer's phases, and moving averages over earlier
+    // transfers of component, which PlacementTable keeps while component is at rest.
+    private volatile long prepareStartedAt = 0;
+    private long performStartedAt = 0;
+    private volatile long expectedPrepareNanos = 0;
+    private volatile long expectedPerformNanos = 0;
+
+    public Component(ComponentId id, Device currentDevice, long size) {
+        this.id = id;
+        this.size = size;
+        this.currentDevice = currentDevice;
+        this.unreservedSpace = size;
+    }
+
+    @Override
+    public ComponentId getId() {
+        return id;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Device getCurrentDevice() {
+        return currentDevice;
+    }
+
+    public Device getDestinationDevice() {
+        return destinationDevice;
+    }
+
+    public void setDestinationDevice(Device destinationDevice) {
+        this.destinationDevice = destinationDevice;
+        inFlight = true;
+    }
+
+    public Boolean isInFlight() {
+        return inFlight;
+    }
+
+    public Handoff getWakeCallToPrepare() {
+        return wakeCallToPrepare;
+    }
+
+    public Handoff getWakeCallToPerform() {
+        return wakeCallToPerform;
+    }
+
+    public Handoff getWakeCallToIo() {
+        return wakeCallToIo;
+    }
+
+    // Component reserves part of space after this one, which it gets when prepare of this transfer ends.
+    public void addNextToPerform(Component next, long space) {
+        unreservedSpace -= space;
+        next.pendingHandoffs++;
+
+        if (nextToPerform == null) {
+            nextToPerform = next;
+        } else {
+            if (moreToPerform == null)
+                moreToPerform = new ArrayList<>();
+            moreToPerform.add(next);
+        }
+    }
+
+    public Component getNextToPerform() {
+        return nextToPerform;
+    }
+
+    // null if there is at most one next component.
+    public List<Component> getMoreToPerform() {
+        return moreToPerform;
+    }
+
+    @Override
+    public long getUnreservedSpace() {
+        return unreservedSpace;
+    }
+
+    // Returns true if this was the last handoff the component waited for.
+    public Boolean completeHandoff() {
+        return --pendingHandoffs == 0;
+    }
+
+    public int getPendingHandoffs() {
+        return pendingHandoffs;
+    }
+
+    public Device getWaitingIn() {
+        return waitingIn;
+    }
+
+    public void setWaitingIn(Device waitingIn) {
+        this.waitingIn = waitingIn;
+    }
+
+    public Boolean isWaitingAcrossShards() {
+        return waitingAcrossShards;
+    }
+
+    public void setWaitingAcrossShards(boolean waitingAcrossShards) {
+        this.waitingAcrossShards = waitingAcrossShards;
+    }
+
+    public List<Device> getDeferredOn() {
+        return deferredOn;
+    }
+
+    public void setDeferredOn(List<Device> deferredOn) {
+        this.deferredOn = deferredOn;
+    }
+
+    public long getWaitingSince() {
+        return waitingSince;
+    }
+
+    public void setWaitingSince(long waitingSince) {
+        this.waitingSince = waitingSince;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setUrgency(int priority, long deadline) {
+        this.priority = priority;
+        this.deadline = deadline;
+    }
+
+    public long getDue() {
+        return due;
+    }
+
+    public void setDue(long due) {
+        this.due = due;
+    }
+
+    public long getArrival() {
+        return arrival;
+    }
+
+    public void setArrival(long arrival) {
+        this.arrival = arrival;
+    }
+
+    public int getWaitLineIndex() {
+        return waitLineIndex;
+    }
+
+    public void setWaitLineIndex(int waitLineIndex) {
+        this.waitLineIndex = waitLineIndex;
+    }
+
+    public Component getPreviousWaitingFrom() {
+        return previousWaitingFrom;
+    }
+
+    public void setPreviousWaitingFrom(Component previousWaitingFrom) {
+        this.previousWaitingFrom = previousWaitingFrom;
+    }
+
+    public Component getNextWaitingFrom() {
+        return nextWaitingFrom;
+    }
+
+    public void setNextWaitingFrom(Component nextWaitingFrom) {
+        this.nextWaitingFrom = nextWaitingFrom;
+    }
+
+    @Override
+    public long getPrepareStartedAt() {
+        return prepareStartedAt;
+    }
+
+    public void setPrepareStartedAt(long prepareStartedAt) {
+        this.prepareStartedAt = prepareStartedAt;
+    }
+
+    public void setPerformStartedAt(long performStartedAt) {
+        this.performStartedAt = performStartedAt;
+    }
+
+    @Override
+    public long getExpectedPrepareNanos() {
+        return expectedPrepareNanos;
+    }
+
+    @Override
+    public long getExpectedPerformNanos() {
+        return expectedPerformNanos;
+    }
+
+    // now is System.nanoTime() right after prepare. Returns duration of prepare.
+    public long recordPrepareEnd(long now) {
+        long duration = now - prepareStartedAt;
+        expectedPrepareNanos = movingAverage(expectedPrepareNanos, duration);
+        return duration;
+    }
+
+    // History of earlier transfers, as kept by PlacementTable, set right after claim.
+    public void setHistory(long expectedPrepareNanos, long expectedPerformNanos) {
+        this.expectedPrepareNanos = expectedPrepareNanos;
+        this.expectedPerformNanos = expectedPerformNanos;
+    }
+
+    // now is System.nanoTime() right after perform. Perform skipped after failed prepare is not recorded.
+    public void recordPerformEnd(long now) {
+        if (performStartedAt != 0)
+            expectedPerformNanos = movingAverage(expectedPerformNanos, now - performStartedAt);
+    }
+
+    // Exponential moving average giving weight 1/4 to the newest sample.
+    static long movingAverage(long average, long sample) {
+        return average == 0 ? Math.max(1, sample) : average + (sample - average) / 4;
+    }
+
+    public void finishClaim() {
+        inFlight = false;
+    }
+
+    // Forgets transfer that was withdrawn before it got any space, but leaves component claimed.
+    // Nobody can signal wakeCallToPrepare anymore, and nobody waits for it.
+    public void withdrawTransfer() {
+        inFlight = false;
+        destinationDevice = null;
+        wakeCallToPrepare.reset();
+    }
+
+    // Places component on destinationDevice, but leaves it claimed.
+    // Object is dropped with the claim, so the rest of transfer state is left as it is.
+    public void finishTransfer(Device destinationDevice) {
+        inFlight = false;
+        currentDevice = destinationDevice;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (! (obj instanceof Component)) {
+            return false;
+        }
+        return this.id.equals(((Component)obj).id);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.id.hashCode();
+    }
+}
@@ -0,0 +1,537 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// acquireAccess is only required for accessors and getters.
+// All other methods acquire access themselves.
+final class Device {
+    private static final VarHandle USED_SPACE;
+    // Set in usedSpace while access is held, so that reserveFreeSpace cannot change it under the holder,
+    // who may be checking free space before taking it.
+    private static final long ACCESS_HELD = Long.MIN_VALUE;
+
+    static {
+        try {
+            USED_SPACE = MethodHandles.lookup().findVarHandle(Device.class, "usedSpace", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final DeviceId id;
+    // Position of device in input of system, under which PlacementTable of system keeps it.
+    private final int index;
+    // In the same units as component sizes.
+    private final long capacity;
+    private final ReentrantLock access = new ReentrantLock();
+    // Access is held only for a few updates, so waiting for it spins first.
+    private final SpinWait accessWait = new SpinWait();
+    // Space of components placed on this device and reserved by transfers coming in, with ACCESS_HELD bit.
+    // Space of leaving component is counted until its prepare ends, and then it is either passed to components that
+    // reserved it, or freed. Changed with access, or by CAS in reserveFreeSpace while access is not held,
+    // and read without it by metrics.
+    private volatile long usedSpace;
+    // Components waiting for permission to move to this device, the most urgent first.
+    // Only the first one can be let in, so that large components are not overtaken forever by small ones.
+    private final WaitLine prepareWaitLineIn = new WaitLine();
+    // Moved components from prepareWaitLineIn by their current device, in order of arrival,
+    // so that transfer going the opposite way finds its swap partner without searching.
+    // Devices nobody waits from are not kept.
+    private final HashMap<Device, WaitingFrom> waitingFrom = new HashMap<>();
+    // Set of transferred components currently on this device that have permission to execute perform
+    // and part of space after them is not reserved yet.
+    private final Set<Component> performWaitSetOut = new HashSet<>();
+    // Sum of unreserved space after components from performWaitSetOut.
+    private long unreservedSpaceOut = 0;
+    // Prepare calls of transfers leaving this device and perform calls of transfers coming to it.
+    private final IoLimit readLimit = new IoLimit();
+    private final IoLimit writeLimit = new IoLimit();
+    // Ids and sizes of components placed on this device. Changed without access, when system is built
+    // and when transfers finish, and read without it, so it is kept apart from space accounting.
+    // Device with many components gets a segment per PLACED_PER_SEGMENT of them, so that bulk load meets less.
+    private static final int PLACED_SEGMENTS = 4;
+    private static final int PLACED_PER_SEGMENT = 1 << 14;
+    private static final int MAX_PLACED_SEGMENTS = Runtime.getRuntime().availableProcessors() * 4;
+    private PlacedComponents placedComponents = new PlacedComponents(0, PLACED_SEGMENTS);
+
+    // Metrics, read without access. Sizes are published every time access is released.
+    private volatile int prepareWaitLineInSize = 0;
+    private volatile int performWaitSetOutSize = 0;
+    private final LongAdder transfersIn = new LongAdder();
+    private final LongAdder transfersOut = new LongAdder();
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    // Moving average of prepare durations of transfers leaving this device (changed only with access).
+    private long expectedPrepareNanos = 0;
+
+    // Fields below belong to WaitForGraph and are only used with its lock held.
+    // Shard of wait-for graph, set once when system is built, and position of device in its topological order.
+    int shard;
+    int order;
+    // Number of last search that visited this device, and edge it was visited by.
+    int searchMark;
+    Device reachedFrom;
+    Component reachedBy;
+    // Position of device in cycle being resolved.
+    int cycleIndex;
+    // Deferred components whose cycle went through this device, read without lock by transfers handing out
+    // space here. Changed by graphs of different shards, when cycle went through more of them.
+    final AtomicInteger deferredMoves = new AtomicInteger(0);
+
+    public Device(DeviceId id, int index, long capacity, long usedSpace) {
+        this.id = id;
+        this.index = index;
+        this.capacity = capacity;
+        this.usedSpace = usedSpace;
+    }
+
+    public void acquireAccess() {
+        accessWait.lock(access);
+
+        if (access.getHoldCount() == 1) {
+            USED_SPACE.getAndBitwiseOr(this, ACCESS_HELD);
+            Handoff.enterLocked();
+        }
+    }
+
+    // Sizes are published before ACCESS_HELD is cleared, so reserveFreeSpace that sees it cleared sees them too.
+    public void releaseAccess() {
+        prepareWaitLineInSize = prepareWaitLineIn.size();
+        performWaitSetOutSize = performWaitSetOut.size();
+
+        Boolean outermost = access.getHoldCount() == 1;
+
+        if (outermost)
+            USED_SPACE.getAndBitwiseAnd(this, ~ACCESS_HELD);
+
+        access.unlock();
+
+        if (outermost)
+            Handoff.exitLocked();
+    }
+
+    public DeviceId getId() {
+        return id;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getUsedSpace() {
+        return usedSpace & ~ACCESS_HELD;
+    }
+
+    public IoLimit getReadLimit() {
+        return readLimit;
+    }
+
+    public IoLimit getWriteLimit() {
+        return writeLimit;
+    }
+
+    // Used only while system is being built by many threads, when nobody holds access yet.
+    public void addUsedSpaceAtomically(long inc) {
+        USED_SPACE.getAndAdd(this, inc);
+    }
+
+    // Used only while system is being built, before any component is placed.
+    public void presizePlaced(int expectedSize) {
+        int segments = Math.max(PLACED_SEGMENTS, Math.min(MAX_PLACED_SEGMENTS, expectedSize / PLACED_PER_SEGMENT));
+        placedComponents = new PlacedComponents(expectedSize, segments);
+    }
+
+    public void addPlaced(int componentId, long size) {
+        placedComponents.put(componentId, size);
+    }
+
+    public void removePlaced(int componentId) {
+        placedComponents.remove(componentId);
+    }
+
+    // Weakly consistent, see PlacementTable.forEach.
+    public void forEachPlaced(PlacedComponents.PlacedConsumer action) {
+        placedComponents.forEach(action);
+    }
+
+    // As published when access was last released, so it can be read without it.
+    public int getPrepareWaitLineInSize() {
+        return prepareWaitLineInSize;
+    }
+
+    public WaitLine getPrepareWaitLineIn() {
+        return prepareWaitLineIn;
+    }
+
+    // Component coming back after it was deferred keeps its place, see WaitLine.addAgain.
+    public void addToPrepareWaitLineIn(Component transferredComponent, Boolean again) {
+        long now = System.nanoTime();
+
+        if (again)
+            prepareWaitLineIn.addAgain(transferredComponent);
+        else
+            prepareWaitLineIn.add(transferredComponent, now);
+        transferredComponent.setWaitingIn(this);
+        transferredComponent.setWaitingSince(now);
+
+        Device source = transferredComponent.getCurrentDevice();
+        if (source != null)
+            waitingFrom.computeIfAbsent(source, d -> new WaitingFrom()).add(transferredComponent);
+    }
+
+    // Moved component from source that waits in prepareWaitLineIn the longest, or null if there is none.
+    // Has to be called with access.
+    public Component peekWaitingFrom(Device source) {
+        WaitingFrom waiting = waitingFrom.get(source);
+        return waiting == null ? null : waiting.first;
+    }
+
+    private void leaveWaitingFrom(Component transferredComponent) {
+        Device source = transferredComponent.getCurrentDevice();
+
+        if (source == null)
+            return;
+
+        WaitingFrom waiting = waitingFrom.get(source);
+
+        if (waiting.remove(transferredComponent))
+            waitingFrom.remove(source);
+    }
+
+    // Returns the most urgent waiting component or null if no one waits.
+    public Component pollPrepareWaitLineIn() {
+        Component c = prepareWaitLineIn.poll();
+
+        if (c == null)
+            return null;
+
+        c.setWaitingIn(null);
+        leaveWaitingFrom(c);
+        waitTimes.record(System.nanoTime() - c.getWaitingSince());
+
+        return c;
+    }
+
+    public Boolean removeFromPrepareWaitLineIn(Component transferredComponent) {
+        if (!prepareWaitLineIn.remove(transferredComponent))
+            return false;
+
+        transferredComponent.setWaitingIn(null);
+        leaveWaitingFrom(transferredComponent);
+        waitTimes.record(System.nanoTime() - transferredComponent.getWaitingSince());
+
+        return true;
+    }
+
+    // Takes component out of prepareWaitLineIn, if it still waits there, for transfer that gives up.
+    // Components behind it may fit now.
+    public Boolean withdrawFromPrepareWaitLineIn(Component transferredComponent, HandoffPolicy policy) {
+        this.acquireAccess();
+
+        try {
+            if (!removeFromPrepareWaitLineIn(transferredComponent))
+                return false;
+
+            admitWaiting(policy);
+            return true;
+        } finally {
+            this.releaseAccess();
+        }
+    }
+
+    // Returns true if space was reserved, otherwise adds component to prepareWaitLineIn and returns false.
+    // Event of that is published before access is released, so before component can be let in, but subscribers
+    // are woken only after that.
+    // Component that was deferred comes back with its place kept and without another event.
+    public Boolean reserveSpot(Component transferredComponent, Boolean again, HandoffPolicy policy,
+                               TransferEventFeed events) {
+        if (reserveFreeSpace(transferredComponent))
+            return true;
+
+        this.acquireAccess();
+
+        try {
+            if (canReserveNow(transferredComponent)) {
+                reserveSpotLocked(transferredComponent, policy);
+                return true;
+            }
+
+            this.addToPrepareWaitLineIn(transferredComponent, again);
+
+            if (!again)
+                events.publish(TransferEvent.Type.QUEUED, transferredComponent.getId(),
+                        transferredComponent.getCurrentDevice(), this);
+
+            // Component could have come before everyone waiting, and then it may fit right away.
+            admitWaiting(policy);
+
+            return transferredComponent.getWaitingIn() != this;
+        } finally {
+            this.releaseAccess();
+        }
+    }
+
+    // Returns true if space was reserved, otherwise leaves device unchanged and returns false.
+    public Boolean tryReserveSpot(Component transferredComponent, HandoffPolicy policy) {
+        if (reserveFreeSpace(transferredComponent))
+            return true;
+
+        this.acquireAccess();
+
+        try {
+            if (!canReserveNow(transferredComponent))
+                return false;
+
+            reserveSpotLocked(transferredComponent, policy);
+            return true;
+        } finally {
+            this.releaseAccess();
+        }
+    }
+
+    // Called when transfer leaving this device got permission to prepare, right before its prepare.
+    // Space after component that nobody reserved yet (in a cycle, some or all of it is reserved already)
+    // can be reserved by components coming in from now on.
+    public void offerSpaceOut(Component transferredComponent, HandoffPolicy policy) {
+        this.acquireAccess();
+
+        try {
+            long unreserved = transferredComponent.getUnreservedSpace();
+
+            if (unreserved > 0) {
+                performWaitSetOut.add(transferredComponent);
+                unreservedSpaceOut += unreserved;
+                admitWaiting(policy);
+            }
+        } finally {
+            this.releaseAccess();
+        }
+    }
+
+    // Called right after prepare of transfer leaving this device. Passes space after component to those that
+    // reserved it, waking up the ones that do not wait for any other space, and frees the rest of it.
+    public void releaseSpaceOut(Component transferredComponent, long prepareDuration, HandoffPolicy policy) {
+        this.acquireAccess();
+
+        try {
+            long unreserved = transferredComponent.getUnreservedSpace();
+
+            // Removing option for incoming transfers to reserve space after transferred component.
+            if (performWaitSetOut.remove(transferredComponent))
+                unreservedSpaceOut -= unreserved;
+
+            recordPrepareDuration(prepareDuration);
+
+            Component next = transferredComponent.getNextToPerform();
+
+            if (next != null) {
+                completeHandoff(next);
+
+                List<Component> more = transferredComponent.getMoreToPerform();
+                if (more != null) {
+                    for (Component c : more)
+                        completeHandoff(c);
+                }
+            }
+
+            if (unreserved > 0) {
+                usedSpace -= unreserved;
+                admitWaiting(policy);
+            }
+        } finally {
+            this.releaseAccess();
+        }
+    }
+
+    // Has to be called with access.
+    public long getFreeSpace() {
+        return capacity - getUsedSpace();
+    }
+
+    // Fast path without access: reserves free space for component in a single CAS, if nobody waits
+    // and nobody holds access. Component may overtake one that started waiting after prepareWaitLineIn size
+    // was read, as it would if it came a moment earlier. Returns false if it has to go through the locked path.
+    private Boolean reserveFreeSpace(Component transferredComponent) {
+        long used = usedSpace;
+
+        if ((used & ACCESS_HELD) != 0 || prepareWaitLineInSize > 0 || transferredComponent.getSize() > capacity - used)
+            return false;
+
+        if (!USED_SPACE.compareAndSet(this, used, used + transferredComponent.getSize()))
+            return false;
+
+        transferredComponent.getWakeCallToPrepare().signal();
+        transferredComponent.getWakeCallToPerform().signal();
+
+        return true;
+    }
+
+    // Has to be called with access, for component moving to this device in a resolved cycle. Incoming component
+    // is removed from prepareWaitLineIn, unless it does not wait there (it was deferred, or it comes from a batch).
+    // Space is reserved after outgoing components leaving this device in the same cycle first, and only the rest
+    // is taken from free space, which together have to be enough. Free space is left to components waiting
+    // in prepareWaitLineIn as far as possible, since cycle would otherwise get it ahead of them. Incoming component
+    // is woken up to perform if it does not need space of outgoing ones. Afterwards, admitWaiting has to be called.
+    public void takeInCycle(Component incoming, List<Component> outgoing) {
+        removeFromPrepareWaitLineIn(incoming);
+
+        long needed = incoming.getSize();
+
+        for (int i = 0; i < outgoing.size() && needed > 0; i++) {
+            long part = Math.min(needed, outgoing.get(i).getUnreservedSpace());
+
+            if (part > 0) {
+                outgoing.get(i).addNextToPerform(incoming, part);
+                needed -= part;
+            }
+        }
+
+        takeFreeSpace(needed);
+
+        if (incoming.getPendingHandoffs() == 0)
+            incoming.getWakeCallToPerform().signal();
+    }
+
+    // Has to be called with access. Lets in waiting components, the most urgent first, as long as the most urgent
+    // one fits.
+    public void admitWaiting(HandoffPolicy policy) {
+        while (!prepareWaitLineIn.isEmpty() && fits(prepareWaitLineIn.peek()))
+            reserveSpotLocked(pollPrepareWaitLineIn(), policy);
+    }
+
+    private void completeHandoff(Component next) {
+        if (next.completeHandoff())
+            next.getWakeCallToPerform().signal();
+    }
+
+    // Reserves up to needed free space and returns how much of it was reserved.
+    private long takeFreeSpace(long needed) {
+        long taken = Math.min(needed, getFreeSpace());
+
+        usedSpace += taken;
+
+        return taken;
+    }
+
+    // Waiting components go first.
+    private Boolean canReserveNow(Component transferredComponent) {
+        return prepareWaitLineIn.isEmpty() && fits(transferredComponent);
+    }
+
+    private Boolean fits(Component transferredComponent) {
+        return transferredComponent.getSize() <= getFreeSpace() + unreservedSpaceOut;
+    }
+
+    // Component coming in takes free space first, and then reserves space after components leaving this device.
+    // It can prepare as soon as whole its size is reserved, and perform once all those components end prepare.
+    // Component has to fit.
+    private void reserveSpotLocked(Component transferredComponent, HandoffPolicy policy) {
+        long needed = transferredComponent.getSize() - takeFreeSpace(transferredComponent.getSize());
+
+        // There is enough space we can reserve, so we can prepare immediately.
+        transferredComponent.getWakeCallToPrepare().signal();
+
+        while (needed > 0) {
+            Component chosen = policy.choose(performWaitSetOut, System.nanoTime(), expectedPrepareNanos);
+
+            // Policy is not trusted to return one of candidates.
+            if (chosen == null || !performWaitSetOut.contains(chosen))
+                chosen = performWaitSetOut.iterator().next();
+
+            long part = Math.min(needed, chosen.getUnreservedSpace());
+
+            chosen.addNextToPerform(transferredComponent, part);
+            unreservedSpaceOut -= part;
+            needed -= part;
+
+            if (chosen.getUnreservedSpace() == 0)
+                performWaitSetOut.remove(chosen);
+        }
+
+        // There was enough free space, so we can perform immediately too.
+        if (transferredComponent.getPendingHandoffs() == 0)
+            transferredComponent.getWakeCallToPerform().signal();
+    }
+
+    private void recordPrepareDuration(long duration) {
+        expectedPrepareNanos = Component.movingAverage(expectedPrepareNanos, duration);
+    }
+
+    // Called when transfer that adds or moves component to this device is finished.
+    public void countTransferIn() {
+        transfersIn.increment();
+    }
+
+    // Called when transfer that removes or moves component from this device is finished.
+    public void countTransferOut() {
+        transfersOut.increment();
+    }
+
+    public StorageSystemMetrics.DeviceMetrics getMetrics() {
+        return new StorageSystemMetrics.DeviceMetrics(id, capacity, getUsedSpace(), prepareWaitLineInSize,
+                performWaitSetOutSize, transfersIn.sum(), transfersOut.sum(), waitTimes.snapshot());
+    }
+
+    // Components waiting from one device, linked through their own fields, so that any of them is taken out
+    // in constant time, wherever it is.
+    private static final class WaitingFrom {
+        private Component first = null;
+        private Component last = null;
+
+        public void add(Component c) {
+            c.setPreviousWaitingFrom(last);
+            c.setNextWaitingFrom(null);
+
+            if (last == null)
+                first = c;
+            else
+                last.setNextWaitingFrom(c);
+
+            last = c;
+        }
+
+        // Returns true if no component is left.
+        public Boolean remove(Component c) {
+            Component previous = c.getPreviousWaitingFrom();
+            Component next = c.getNextWaitingFrom();
+
+            if (previous == null)
+                first = next;
+            else
+                previous.setNextWaitingFrom(next);
+
+            if (next == null)
+                last = previous;
+            else
+                next.setPreviousWaitingFrom(previous);
+
+            c.setPreviousWaitingFrom(null);
+            c.setNextWaitingFrom(null);
+
+            return first == null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (! (obj instanceof Device)) {
+            return false;
+        }
+        return this.id.equals(((Device)obj).id);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.id.hashCode();
+    }
+}
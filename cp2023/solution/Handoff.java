@@ -0,0 +1,152 @@
+package cp2023.solution;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+// Single permit passed from any thread to one waiting thread, or to one continuation.
+// Unlike semaphore it does not allocate anything while waiting, and it can be reset and used again.
+// Permits are often passed with locks held (access of device, of wait-for graph or of I/O limit), so continuation
+// is submitted to its executor only once signalling thread released all of them: executor that runs it inline,
+// rejects it or is just slow then never does so under a lock. Those locks call enterLocked and exitLocked,
+// and anything else that should not run under them can wait for that too, see afterLocks.
+final class Handoff {
+    private static final Object SIGNALLED = new Object();
+    private static final VarHandle STATE;
+    private static final ThreadLocal<LockedSection> LOCKED = ThreadLocal.withInitial(LockedSection::new);
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Handoff.class, "state", Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // null if there is no permit and no one waits, waiting Thread, Continuation, or SIGNALLED.
+    private volatile Object state = null;
+
+    public void signal() {
+        Object previous = STATE.getAndSet(this, SIGNALLED);
+
+        if (previous instanceof Thread)
+            LockSupport.unpark((Thread) previous);
+        else if (previous instanceof Continuation)
+            ((Continuation) previous).start();
+    }
+
+    public Boolean isSignalled() {
+        return state == SIGNALLED;
+    }
+
+    // Only one thread can wait for given permit. Interrupt does not stop waiting, since permit usually stands
+    // for space that other transfers already count on, but thread returns with its interrupt status set.
+    public void await() {
+        if (state == SIGNALLED)
+            return;
+
+        if (!STATE.compareAndSet(this, null, Thread.currentThread()))
+            return;
+
+        Boolean interrupted = false;
+
+        while (state != SIGNALLED) {
+            LockSupport.park(this);
+
+            if (Thread.interrupted())
+                interrupted = true;
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // Waits at most nanos for permit, and returns whether it was passed. Returns early when thread is interrupted,
+    // leaving its interrupt status set. Thread that returns false no longer waits, so it may call await later.
+    public Boolean awaitNanos(long nanos) {
+        Thread current = Thread.currentThread();
+
+        if (state == SIGNALLED || !STATE.compareAndSet(this, null, current))
+            return true;
+
+        long deadline = System.nanoTime() + nanos;
+
+        for (long left = nanos; state != SIGNALLED && left > 0 && !current.isInterrupted();
+             left = deadline - System.nanoTime())
+            LockSupport.parkNanos(this, left);
+
+        // Permit may come right before waiting thread is taken back.
+        return state == SIGNALLED || !STATE.compareAndSet(this, current, null);
+    }
+
+    // Submits action to executor once permit is passed (or right away if it already was), in both cases once
+    // signalling thread holds no locks. Only one action can wait for given permit, and no thread can wait for it
+    // at the same time. Executor should not throw, since signalling thread cannot do anything about it.
+    public void whenSignalled(Executor executor, Runnable action) {
+        Continuation continuation = new Continuation(executor, action);
+
+        if (state == SIGNALLED || !STATE.compareAndSet(this, null, continuation))
+            continuation.start();
+    }
+
+    // Called by locks right after they are acquired.
+    static void enterLocked() {
+        LOCKED.get().depth++;
+    }
+
+    // Called by locks right after they are released. Submits continuations signalled in the meantime
+    // once the last lock is released.
+    static void exitLocked() {
+        LockedSection section = LOCKED.get();
+
+        if (--section.depth > 0)
+            return;
+
+        // Action run inline may take locks again, and leave more of them.
+        Runnable action;
+        while ((action = section.pending.poll()) != null)
+            action.run();
+    }
+
+    // Runs action right away if thread holds none of the locks, or once it releases the last of them.
+    static void afterLocks(Runnable action) {
+        LockedSection section = LOCKED.get();
+
+        if (section.depth > 0)
+            section.pending.add(action);
+        else
+            action.run();
+    }
+
+    // Has to be called only when no one can signal or wait anymore.
+    public void reset() {
+        state = null;
+    }
+
+    private static final class Continuation implements Runnable {
+        private final Executor executor;
+        private final Runnable action;
+
+        public Continuation(Executor executor, Runnable action) {
+            this.executor = executor;
+            this.action = action;
+        }
+
+        public void start() {
+            afterLocks(this);
+        }
+
+        @Override
+        public void run() {
+            executor.execute(action);
+        }
+    }
+
+    // Locks held by thread, and actions (mostly signalled continuations) left until it releases them.
+    private static final class LockedSection {
+        private int depth = 0;
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+    }
+}
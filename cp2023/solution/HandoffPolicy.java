@@ -0,0 +1,61 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+
+// Chooses which transfer leaving a full device gives its space to transfer coming in.
+// Candidates are transfers that already started prepare and part of their space is not reserved yet.
+// Space is freed when candidate's prepare ends, so the best choice is usually the one expected to end it first.
+// When chosen candidate has less unreserved space than needed, policy is asked again for the rest,
+// and transfer coming in performs only after all chosen candidates end prepare.
+// Called with device access held, so it has to be quick.
+public interface HandoffPolicy {
+
+    interface Candidate {
+        ComponentId getId();
+
+        // System.nanoTime() at which prepare started.
+        long getPrepareStartedAt();
+
+        // Moving averages of durations of earlier prepares and performs of the same component, 0 if there were none.
+        // Kept while component is at rest, and dropped when it is removed.
+        long getExpectedPrepareNanos();
+
+        long getExpectedPerformNanos();
+
+        // Part of candidate's space nobody reserved yet, positive.
+        long getUnreservedSpace();
+    }
+
+    // Returns one of candidates (there is at least one). now is current System.nanoTime(),
+    // and deviceExpectedPrepareNanos is moving average of prepares of all transfers leaving device.
+    <C extends Candidate> C choose(Iterable<C> candidates, long now, long deviceExpectedPrepareNanos);
+
+    // Takes whichever candidate comes first.
+    HandoffPolicy ANY = new HandoffPolicy() {
+        @Override
+        public <C extends Candidate> C choose(Iterable<C> candidates, long now, long deviceExpectedPrepareNanos) {
+            return candidates.iterator().next();
+        }
+    };
+
+    // Takes candidate with the least expected remaining prepare time, using device average when component has no history.
+    HandoffPolicy SOONEST_FREE = new HandoffPolicy() {
+        @Override
+        public <C extends Candidate> C choose(Iterable<C> candidates, long now, long deviceExpectedPrepareNanos) {
+            C best = null;
+            long bestRemaining = Long.MAX_VALUE;
+
+            for (C c : candidates) {
+                long expected = c.getExpectedPrepareNanos() != 0 ? c.getExpectedPrepareNanos() : deviceExpectedPrepareNanos;
+                long remaining = Math.max(0, c.getPrepareStartedAt() + expected - now);
+
+                if (best == null || remaining < bestRemaining) {
+                    best = c;
+                    bestRemaining = remaining;
+                }
+            }
+
+            return best;
+        }
+    };
+}
@@ -0,0 +1,245 @@
+package cp2023.solution;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Concurrent map from int to object with open addressing, so keys are neither boxed nor wrapped in entries.
+// Map is split into segments, writers lock only their segment, and readers do not lock at all.
+// Slot of removed key is never reused in place (only when segment is rebuilt), which lets reader
+// trust key it reads after it has seen a live value in the same slot.
+final class IntConcurrentMap<V> {
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final Object REMOVED = new Object();
+    private static final int MIN_SEGMENT_CAPACITY = 8;
+
+    @FunctionalInterface
+    public interface IntObjConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    public IntConcurrentMap(int expectedSize) {
+        this(expectedSize, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    // For small maps, of which there are many, and few writers meet in each: at most maxSegments segments.
+    @SuppressWarnings("unchecked")
+    public IntConcurrentMap(int expectedSize, int maxSegments) {
+        int segmentCnt = Integer.highestOneBit(Math.max(1, maxSegments) * 2 - 1);
+        int segmentCapacity = tableCapacity(expectedSize / segmentCnt + 1);
+
+        segments = (Segment<V>[]) new Segment<?>[segmentCnt];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCnt);
+
+        for (int i = 0; i < segmentCnt; i++)
+            segments[i] = new Segment<>(segmentCapacity);
+    }
+
+    public V get(int key) {
+        int hash = mix(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    // Returns value already associated with key, or null if value was put.
+    public V putIfAbsent(int key, V value) {
+        int hash = mix(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    // Returns previous value associated with key.
+    public V put(int key, V value) {
+        int hash = mix(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    // Removes key only if it is associated with given value.
+    public Boolean remove(int key, V value) {
+        int hash = mix(key);
+        return segmentFor(hash).remove(key, hash, value);
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (Segment<V> segment : segments)
+            size += segment.size;
+
+        return size;
+    }
+
+    // Weakly consistent: sees every entry present during whole iteration, may or may not see others.
+    public void forEach(IntObjConsumer<? super V> action) {
+        for (Segment<V> segment : segments)
+            segment.forEach(action);
+    }
+
+    public List<V> values() {
+        List<V> result = new ArrayList<>(size());
+        forEach((key, value) -> result.add(value));
+        return result;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int tableCapacity(int size) {
+        return Math.max(MIN_SEGMENT_CAPACITY, Integer.highestOneBit(Math.max(1, size * 2 - 1)) * 2);
+    }
+
+    private static final class Segment<V> {
+        private final ReentrantLock access = new ReentrantLock();
+        // Replaced as a whole when segment is rebuilt, so readers always see matching keys and values.
+        private volatile Table table;
+        private volatile int size = 0;
+        // Slots with live or removed value.
+        private int used = 0;
+
+        public Segment(int capacity) {
+            table = new Table(capacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(int key, int hash) {
+            Table t = table;
+            int mask = t.keys.length - 1;
+
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Object value = SLOT.getAcquire(t.values, i);
+
+                if (value == null)
+                    return null;
+
+                if (value != REMOVED && t.keys[i] == key)
+                    return (V) value;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public V put(int key, int hash, V value, Boolean onlyIfAbsent) {
+            access.lock();
+
+            try {
+                Table t = table;
+                int mask = t.keys.length - 1;
+                int i = hash & mask;
+
+                for (; ; i = (i + 1) & mask) {
+                    Object current = t.values[i];
+
+                    if (current == null)
+                        break;
+
+                    if (current != REMOVED && t.keys[i] == key) {
+                        if (!onlyIfAbsent)
+                            SLOT.setRelease(t.values, i, value);
+
+                        return (V) current;
+                    }
+                }
+
+                if ((used + 1) * 4 > t.keys.length * 3) {
+                    rebuild(size + 1);
+                    t = table;
+                    mask = t.keys.length - 1;
+
+                    for (i = hash & mask; t.values[i] != null; i = (i + 1) & mask) {
+                    }
+                }
+
+                t.keys[i] = key;
+                SLOT.setRelease(t.values, i, value);
+                size++;
+                used++;
+
+                return null;
+            } finally {
+                access.unlock();
+            }
+        }
+
+        public Boolean remove(int key, int hash, V value) {
+            access.lock();
+
+            try {
+                Table t = table;
+                int mask = t.keys.length - 1;
+
+                for (int i = hash & mask; ; i = (i + 1) & mask) {
+                    Object current = t.values[i];
+
+                    if (current == null)
+                        return false;
+
+                    if (current != REMOVED && t.keys[i] == key) {
+                        if (current != value)
+                            return false;
+
+                        SLOT.setRelease(t.values, i, REMOVED);
+                        size--;
+
+                        return true;
+                    }
+                }
+            } finally {
+                access.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public void forEach(IntObjConsumer<? super V> action) {
+            Table t = table;
+
+            for (int i = 0; i < t.keys.length; i++) {
+                Object value = SLOT.getAcquire(t.values, i);
+
+                if (value != null && value != REMOVED)
+                    action.accept(t.keys[i], (V) value);
+            }
+        }
+
+        // Has to be called with access. Copies live entries to new table, dropping removed ones.
+        private void rebuild(int liveSize) {
+            Table old = table;
+            Table t = new Table(tableCapacity(liveSize));
+            int mask = t.keys.length - 1;
+
+            for (int j = 0; j < old.keys.length; j++) {
+                Object value = old.values[j];
+
+                if (value == null || value == REMOVED)
+                    continue;
+
+                int i = mix(old.keys[j]) & mask;
+                while (t.values[i] != null)
+                    i = (i + 1) & mask;
+
+                t.keys[i] = old.keys[j];
+                t.values[i] = value;
+            }
+
+            used = size;
+            table = t;
+        }
+    }
+
+    private static final class Table {
+        private final int[] keys;
+        private final Object[] values;
+
+        public Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+    }
+}
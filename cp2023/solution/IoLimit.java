@@ -0,0 +1,84 @@
+package cp2023.solution;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Limit of prepare or perform calls running on one device at the same time, handed out in order of arrival.
+// Holder never waits for anything else before releasing it, so it cannot take part in any deadlock,
+// and transfers of cycles and chains only get serialized on busy devices.
+// Permits are passed through Handoff, so waiting for them costs nothing more than waiting for a spot.
+final class IoLimit {
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final ReentrantLock access = new ReentrantLock();
+    // Read without access, so that unlimited devices are not counted at all.
+    private volatile int limit = UNLIMITED;
+    private int running = 0;
+    private final ArrayDeque<Handoff> waiting = new ArrayDeque<>();
+
+    public Boolean isLimited() {
+        return limit != UNLIMITED;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    // Calls that started while device was unlimited are not counted, so they can go over new limit for a while.
+    public void setLimit(int limit) {
+        lock();
+
+        try {
+            this.limit = limit;
+            admitWaiting();
+        } finally {
+            unlock();
+        }
+    }
+
+    // Signals permit once call can start, right away if limit is not reached.
+    public void acquire(Handoff permit) {
+        lock();
+
+        try {
+            if (running < limit && waiting.isEmpty()) {
+                running++;
+                permit.signal();
+            } else {
+                waiting.add(permit);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    // Has to be called once after every call let in by acquire.
+    public void release() {
+        lock();
+
+        try {
+            running--;
+            admitWaiting();
+        } finally {
+            unlock();
+        }
+    }
+
+    // Permits signalled under access reach their continuations only after it is released, see Handoff.
+    private void lock() {
+        access.lock();
+        Handoff.enterLocked();
+    }
+
+    private void unlock() {
+        access.unlock();
+        Handoff.exitLocked();
+    }
+
+    private void admitWaiting() {
+        while (running < limit && !waiting.isEmpty()) {
+            running++;
+            waiting.poll().signal();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package cp2023.solution;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free histogram of durations in nanoseconds, with power of two buckets.
+// Bucket i counts durations d with 2^(i-1) <= d < 2^i (bucket 0 counts zeros),
+// so percentiles are exact up to factor of two, which is enough to spot a hotspot.
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    // Counters are read one by one, so snapshot taken during recording may be off by a few samples.
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+
+        return new Snapshot(counts, totalNanos.sum(), maxNanos.get());
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        private Snapshot(long[] counts, long totalNanos, long maxNanos) {
+            long count = 0;
+
+            for (long c : counts)
+                count += c;
+
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        // Returns upper bound of bucket containing p-th percentile (p between 0 and 1), never more than max.
+        public long getPercentileNanos(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+
+                if (seen >= rank && seen > 0)
+                    return i == 0 ? 0 : Math.min(maxNanos, (1L << i) - 1);
+            }
+
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d mean %.0fns p50 %dns p99 %dns max %dns", count, getMeanNanos(),
+                    getPercentileNanos(0.5), getPercentileNanos(0.99), maxNanos);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package cp2023.solution;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import cp2023.base.AsyncStorageSystem;
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+
+// Storage system as returned by StorageSystemFactory, with queries, plans, events and settings
+// on top of executing transfers. See StorageSystemImpl for details of every method.
+public interface ManagedStorageSystem extends AsyncStorageSystem {
+
+    // Device component is placed on, or null if it does not exist. Never waits for transfers.
+    DeviceId getComponentDevice(ComponentId componentId);
+
+    // Space taken on device by placed components and by transfers that reserved space on it. Never waits.
+    long getDeviceUsedSpace(DeviceId deviceId);
+
+    // Components placed on device. Component moving to or from it at the moment may or may not be listed.
+    List<ComponentId> getComponentsOn(DeviceId deviceId);
+
+    // Placement, occupancy of devices and transfers in flight, read without locks.
+    PlacementView snapshotPlacement();
+
+    // Moves from current placement to target one.
+    TransferPlan planTransfers(Map<ComponentId, DeviceId> target);
+
+    // Moves of every component placed on device to other devices.
+    TransferPlan planEvacuation(DeviceId deviceId);
+
+    void evacuateDevice(DeviceId deviceId, Function<TransferPlan.Move, ? extends ComponentTransfer> transfers)
+            throws TransferException;
+
+    // Events of transfers from now on, delivered on a thread of the system's event feed.
+    TransferEventSubscription subscribeEvents(Consumer<List<TransferEvent>> consumer);
+
+    // Same as above, but delivered on executor, or on a thread of the event feed if it is null.
+    TransferEventSubscription subscribeEvents(Consumer<List<TransferEvent>> consumer, Executor executor);
+
+    void setHandoffPolicy(HandoffPolicy handoffPolicy);
+
+    void setDeviceIoLimits(DeviceId deviceId, int maxConcurrentReads, int maxConcurrentWrites);
+
+    StorageSystemMetrics getMetrics();
+
+    StorageSystemMetricsMXBean getMetricsMXBean();
+
+    // Only for system with placement log, throws IllegalStateException otherwise.
+    void checkpoint();
+}
@@ -0,0 +1,185 @@
+package cp2023.solution;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ids and sizes of components placed on one device. Organized like PlacementTable, but without column of devices,
+// which would hold the same index in every slot: size of live component is positive, so sizes column also marks
+// free slots and removed components, and it is the one published with release.
+final class PlacedComponents {
+    private static final VarHandle SIZE = MethodHandles.arrayElementVarHandle(long[].class);
+    // Values of sizes column other than size of live component.
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+
+    @FunctionalInterface
+    public interface PlacedConsumer {
+        void accept(int componentId, long size);
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    // At most maxSegments segments, see PlacementTable.
+    public PlacedComponents(int expectedSize, int maxSegments) {
+        int segmentCnt = Integer.highestOneBit(Math.max(1, maxSegments) * 2 - 1);
+        int segmentCapacity = IntConcurrentMap.tableCapacity(expectedSize / segmentCnt + 1);
+
+        segments = new Segment[segmentCnt];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCnt);
+
+        for (int i = 0; i < segmentCnt; i++)
+            segments[i] = new Segment(segmentCapacity);
+    }
+
+    // Places component, or changes its size if it is placed already. Size has to be positive.
+    public void put(int componentId, long size) {
+        int hash = IntConcurrentMap.mix(componentId);
+        segmentFor(hash).put(componentId, hash, size);
+    }
+
+    public Boolean remove(int componentId) {
+        int hash = IntConcurrentMap.mix(componentId);
+        return segmentFor(hash).remove(componentId, hash);
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (Segment segment : segments)
+            size += segment.size;
+
+        return size;
+    }
+
+    // Weakly consistent, see PlacementTable.forEach.
+    public void forEach(PlacedConsumer action) {
+        for (Segment segment : segments)
+            segment.forEach(action);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+
+    private static final class Segment {
+        private final ReentrantLock access = new ReentrantLock();
+        // Replaced as a whole when segment is rebuilt, so readers always see matching columns.
+        private volatile Table table;
+        private volatile int size = 0;
+        // Slots with live or removed component.
+        private int used = 0;
+
+        public Segment(int capacity) {
+            table = new Table(capacity);
+        }
+
+        public void put(int key, int hash, long size) {
+            access.lock();
+
+            try {
+                Table t = table;
+                int i = t.find(key, hash);
+
+                if (i >= 0) {
+                    SIZE.setRelease(t.sizes, i, size);
+                    return;
+                }
+
+                if ((used + 1) * 4 > t.keys.length * 3) {
+                    rebuild(this.size + 1);
+                    t = table;
+                }
+
+                int mask = t.keys.length - 1;
+                for (i = hash & mask; t.sizes[i] != EMPTY; i = (i + 1) & mask) {
+                }
+
+                t.keys[i] = key;
+                SIZE.setRelease(t.sizes, i, size);
+                this.size++;
+                used++;
+            } finally {
+                access.unlock();
+            }
+        }
+
+        public Boolean remove(int key, int hash) {
+            access.lock();
+
+            try {
+                Table t = table;
+                int i = t.find(key, hash);
+
+                if (i < 0)
+                    return false;
+
+                SIZE.setRelease(t.sizes, i, REMOVED);
+                size--;
+
+                return true;
+            } finally {
+                access.unlock();
+            }
+        }
+
+        public void forEach(PlacedConsumer action) {
+            Table t = table;
+
+            for (int i = 0; i < t.keys.length; i++) {
+                long size = (long) SIZE.getAcquire(t.sizes, i);
+
+                if (size > 0)
+                    action.accept(t.keys[i], size);
+            }
+        }
+
+        // Has to be called with access. Copies live components to new table, dropping removed ones.
+        private void rebuild(int liveSize) {
+            Table old = table;
+            Table t = new Table(IntConcurrentMap.tableCapacity(liveSize));
+            int mask = t.keys.length - 1;
+
+            for (int j = 0; j < old.keys.length; j++) {
+                if (old.sizes[j] <= 0)
+                    continue;
+
+                int i = IntConcurrentMap.mix(old.keys[j]) & mask;
+                while (t.sizes[i] != EMPTY)
+                    i = (i + 1) & mask;
+
+                t.keys[i] = old.keys[j];
+                t.sizes[i] = old.sizes[j];
+            }
+
+            used = size;
+            table = t;
+        }
+    }
+
+    private static final class Table {
+        private final int[] keys;
+        private final long[] sizes;
+
+        public Table(int capacity) {
+            keys = new int[capacity];
+            sizes = new long[capacity];
+        }
+
+        // Slot of live component, or -1.
+        public int find(int key, int hash) {
+            int mask = keys.length - 1;
+
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long size = (long) SIZE.getAcquire(sizes, i);
+
+                if (size == EMPTY)
+                    return -1;
+
+                if (size != REMOVED && keys[i] == key)
+                    return i;
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package cp2023.solution;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+// Write-ahead log of finished transfers, split into memory-mapped segments of fixed size.
+// Every record says where component is placed after transfer and what is its size (or that it was removed),
+// so replaying records in order over any snapshot taken after segment start gives current placement.
+// Appending only writes to mapped memory. Durability is group-committed: whoever forces the segment
+// makes durable every record appended before, and others waiting for the same records just return.
+final class PlacementLog {
+    @FunctionalInterface
+    public interface RecordConsumer {
+        void accept(int componentId, int deviceId, long size, Boolean removed);
+    }
+
+    // Component id, device id, size, flags and CRC32C of all of them.
+    public static final int RECORD_SIZE = 24;
+    private static final int PLACED = 1;
+    private static final int REMOVED = 2;
+
+    private final Path directory;
+    private final int segmentRecords;
+    // Called with number of new segment, after previous one is full and durable.
+    private final LongConsumer onRotate;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private final CRC32C crc = new CRC32C();
+    private long segmentNumber;
+    private MappedByteBuffer segment;
+    private int position = 0;
+    // Number of records ever appended, and of those already durable.
+    private volatile long appended = 0;
+    private final AtomicLong forced = new AtomicLong(0);
+
+    public PlacementLog(Path directory, long firstSegmentNumber, int segmentRecords, LongConsumer onRotate) {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.onRotate = onRotate;
+        this.segmentNumber = firstSegmentNumber;
+        this.segment = createSegment(firstSegmentNumber);
+    }
+
+    public static Path segmentPath(Path directory, long segmentNumber) {
+        return directory.resolve(String.format("log-%016d.bin", segmentNumber));
+    }
+
+    // Returns number of record, to be passed to awaitDurable.
+    public long append(int componentId, int deviceId, long size, Boolean removed) {
+        appendLock.lock();
+
+        try {
+            if (position == segmentRecords * RECORD_SIZE)
+                rotateLocked();
+
+            int flags = removed ? REMOVED : PLACED;
+
+            crc.reset();
+            segment.putInt(position, componentId);
+            segment.putInt(position + 4, deviceId);
+            segment.putLong(position + 8, size);
+            segment.putInt(position + 16, flags);
+            crc.update(segment.slice(position, 20));
+            segment.putInt(position + 20, (int) crc.getValue());
+            position += RECORD_SIZE;
+
+            return ++appended;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Returns when given record and all appended before it are on disk.
+    public void awaitDurable(long record) {
+        if (forced.get() >= record)
+            return;
+
+        forceLock.lock();
+
+        try {
+            if (forced.get() >= record)
+                return;
+
+            MappedByteBuffer current;
+            long upTo;
+
+            appendLock.lock();
+            try {
+                current = segment;
+                upTo = appended;
+            } finally {
+                appendLock.unlock();
+            }
+
+            // If segment was rotated in the meantime, all its records were already forced by rotation.
+            current.force();
+            forced.accumulateAndGet(upTo, Math::max);
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    // Starts new segment even if current one is not full, which leads to new snapshot.
+    public void rotate() {
+        appendLock.lock();
+
+        try {
+            rotateLocked();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void rotateLocked() {
+        segment.force();
+        forced.accumulateAndGet(appended, Math::max);
+
+        segment = createSegment(segmentNumber + 1);
+        segmentNumber++;
+        position = 0;
+
+        onRotate.accept(segmentNumber);
+    }
+
+    private MappedByteBuffer createSegment(long number) {
+        try (FileChannel channel = FileChannel.open(segmentPath(directory, number),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Passes records of segment file to consumer in order, stopping at first empty or torn one.
+    public static void replay(Path segmentFile, RecordConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32C crc = new CRC32C();
+
+            for (int p = 0; p + RECORD_SIZE <= buffer.limit(); p += RECORD_SIZE) {
+                int flags = buffer.getInt(p + 16);
+
+                crc.reset();
+                crc.update(buffer.slice(p, 20));
+
+                if ((flags != PLACED && flags != REMOVED) || buffer.getInt(p + 20) != (int) crc.getValue())
+                    return;
+
+                consumer.accept(buffer.getInt(p), buffer.getInt(p + 4), buffer.getLong(p + 8), flags == REMOVED);
+            }
+        }
+    }
+
+    // Deletes segments older than given one, they are covered by snapshot of that segment.
+    public static void deleteSegmentsBefore(Path directory, long segmentNumber) throws IOException {
+        for (long number : PlacementSnapshot.listNumbers(directory, "log-")) {
+            if (number < segmentNumber)
+                Files.deleteIfExists(segmentPath(directory, number));
+        }
+    }
+}
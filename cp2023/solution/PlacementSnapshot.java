@@ -0,0 +1,218 @@
+package cp2023.solution;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Compact binary snapshot of devices and component placement, taken when log segment starts.
+// Snapshot is fuzzy: transfers keep finishing while it is written, but each of them is also logged
+// in that segment or a later one, so snapshot of segment n plus log segments n, n + 1, ... give current placement.
+// Layout: magic, segment number, devices (id, capacity), components (id, device, size), CRC32C of all of it.
+final class PlacementSnapshot {
+    private static final int MAGIC = 0x43505332;
+
+    // Devices deviceIds[i] with capacity deviceCapacities[i],
+    // component componentIds[j] of size componentSizes[j] on componentDevices[j].
+    public final long segmentNumber;
+    public final int[] deviceIds;
+    public final long[] deviceCapacities;
+    public final int[] componentIds;
+    public final int[] componentDevices;
+    public final long[] componentSizes;
+
+    public PlacementSnapshot(long segmentNumber, int[] deviceIds, long[] deviceCapacities,
+                             int[] componentIds, int[] componentDevices, long[] componentSizes) {
+        this.segmentNumber = segmentNumber;
+        this.deviceIds = deviceIds;
+        this.deviceCapacities = deviceCapacities;
+        this.componentIds = componentIds;
+        this.componentDevices = componentDevices;
+        this.componentSizes = componentSizes;
+    }
+
+    public static Path snapshotPath(Path directory, long segmentNumber) {
+        return directory.resolve(String.format("snapshot-%016d.bin", segmentNumber));
+    }
+
+    // Writes snapshot to temporary file and moves it in place, so there is never half of snapshot under its name.
+    // Then deletes older snapshots and log segments, which are not needed anymore.
+    public void write(Path directory) throws IOException {
+        Path tmp = directory.resolve(String.format("snapshot-%016d.tmp", segmentNumber));
+        CRC32C crc = new CRC32C();
+
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new CheckedOutputStream(file, crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(segmentNumber);
+
+            out.writeInt(deviceIds.length);
+            for (int i = 0; i < deviceIds.length; i++) {
+                out.writeInt(deviceIds[i]);
+                out.writeLong(deviceCapacities[i]);
+            }
+
+            out.writeInt(componentIds.length);
+            for (int j = 0; j < componentIds.length; j++) {
+                out.writeInt(componentIds[j]);
+                out.writeInt(componentDevices[j]);
+                out.writeLong(componentSizes[j]);
+            }
+
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(tmp, snapshotPath(directory, segmentNumber),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (long number : listNumbers(directory, "snapshot-")) {
+            if (number < segmentNumber)
+                Files.deleteIfExists(snapshotPath(directory, number));
+        }
+
+        PlacementLog.deleteSegmentsBefore(directory, segmentNumber);
+    }
+
+    // Returns null if file is not a complete snapshot.
+    public static PlacementSnapshot read(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        // Every device and component takes at least 12 bytes, which bounds counts read from damaged file.
+        long maxCount = Files.size(file) / 12;
+
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 16), crc))) {
+            if (in.readInt() != MAGIC)
+                return null;
+
+            long segmentNumber = in.readLong();
+
+            int deviceCnt = in.readInt();
+            if (deviceCnt < 0 || deviceCnt > maxCount)
+                return null;
+
+            int[] deviceIds = new int[deviceCnt];
+            long[] deviceCapacities = new long[deviceIds.length];
+            for (int i = 0; i < deviceIds.length; i++) {
+                deviceIds[i] = in.readInt();
+                deviceCapacities[i] = in.readLong();
+            }
+
+            int componentCnt = in.readInt();
+            if (componentCnt < 0 || componentCnt > maxCount)
+                return null;
+
+            int[] componentIds = new int[componentCnt];
+            int[] componentDevices = new int[componentIds.length];
+            long[] componentSizes = new long[componentIds.length];
+            for (int j = 0; j < componentIds.length; j++) {
+                componentIds[j] = in.readInt();
+                componentDevices[j] = in.readInt();
+                componentSizes[j] = in.readLong();
+            }
+
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected)
+                return null;
+
+            return new PlacementSnapshot(segmentNumber, deviceIds, deviceCapacities, componentIds, componentDevices,
+                    componentSizes);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // Reads the newest complete snapshot and replays log segments written after it.
+    // Returned snapshot is numbered with first free segment number, so new log can start right there.
+    public static PlacementSnapshot recover(Path directory) throws IOException {
+        List<Long> snapshots = listNumbers(directory, "snapshot-");
+        PlacementSnapshot base = null;
+
+        for (int i = snapshots.size() - 1; i >= 0 && base == null; i--)
+            base = read(snapshotPath(directory, snapshots.get(i)));
+
+        if (base == null)
+            throw new IllegalArgumentException("No complete snapshot in " + directory + ".");
+
+        // Devices are kept in placement table by their index in snapshot, see Device.getIndex.
+        Map<Integer, Integer> deviceIndexes = new HashMap<>();
+        for (int i = 0; i < base.deviceIds.length; i++)
+            deviceIndexes.put(base.deviceIds[i], i);
+
+        // Used by this thread only, so it needs no more than one segment.
+        PlacementTable placement = new PlacementTable(base.componentIds.length, 1);
+        for (int j = 0; j < base.componentIds.length; j++)
+            placement.put(base.componentIds[j], deviceIndex(deviceIndexes, base.componentDevices[j]),
+                    base.componentSizes[j]);
+
+        long nextSegment = base.segmentNumber;
+
+        for (long number : listNumbers(directory, "log-")) {
+            if (number < base.segmentNumber)
+                continue;
+
+            PlacementLog.replay(PlacementLog.segmentPath(directory, number), (componentId, deviceId, size, removed) -> {
+                if (removed)
+                    placement.remove(componentId);
+                else
+                    placement.put(componentId, deviceIndex(deviceIndexes, deviceId), size);
+            });
+
+            nextSegment = number + 1;
+        }
+
+        int[] componentIds = new int[placement.size()];
+        int[] componentDevices = new int[componentIds.length];
+        long[] componentSizes = new long[componentIds.length];
+        int[] deviceIds = base.deviceIds;
+        int[] cnt = {0};
+
+        placement.forEach((componentId, deviceIndex, size) -> {
+            componentIds[cnt[0]] = componentId;
+            componentDevices[cnt[0]] = deviceIds[deviceIndex];
+            componentSizes[cnt[0]] = size;
+            cnt[0]++;
+        });
+
+        return new PlacementSnapshot(nextSegment, base.deviceIds, base.deviceCapacities, componentIds,
+                componentDevices, componentSizes);
+    }
+
+    private static int deviceIndex(Map<Integer, Integer> deviceIndexes, int deviceId) {
+        Integer index = deviceIndexes.get(deviceId);
+
+        if (index == null)
+            throw new IllegalArgumentException("Log names device " + deviceId + " that snapshot does not have.");
+
+        return index;
+    }
+
+    // Returns numbers of files named prefix + number + ".bin", in increasing order.
+    public static List<Long> listNumbers(Path directory, String prefix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*.bin")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - ".bin".length())));
+                } catch (NumberFormatException e) {
+                    // Not our file.
+                }
+            }
+        }
+
+        numbers.sort(null);
+
+        return numbers;
+    }
+}
@@ -0,0 +1,303 @@
+package cp2023.solution;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Placement of components that are not being transferred, as primitive columns: component id, index of device
+// and size, so component at rest costs a few ints instead of Component object with all its transfer state.
+// Organized like IntConcurrentMap: writers lock only their segment, readers do not lock at all, and slot
+// of removed component is reused only when segment is rebuilt, so reader that has seen a live device in a slot
+// can trust its key and size. Sizes column is allocated only when some component has size other than 1,
+// and history column, with moving averages of prepare and perform of component's transfers, only when some
+// component has history.
+final class PlacementTable {
+    public static final int ABSENT = -1;
+
+    private static final VarHandle PLACE = MethodHandles.arrayElementVarHandle(int[].class);
+    // History is read without locks, opaque access only keeps longs from tearing.
+    private static final VarHandle HISTORY = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int PREPARE = 0;
+    private static final int PERFORM = 1;
+    // Values of places column other than device index + 1.
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    @FunctionalInterface
+    public interface PlacementConsumer {
+        void accept(int componentId, int deviceIndex, long size);
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    public PlacementTable(int expectedSize) {
+        this(expectedSize, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    // For tables that few writers meet in: at most maxSegments segments.
+    public PlacementTable(int expectedSize, int maxSegments) {
+        int segmentCnt = Integer.highestOneBit(Math.max(1, maxSegments) * 2 - 1);
+        int segmentCapacity = IntConcurrentMap.tableCapacity(expectedSize / segmentCnt + 1);
+
+        segments = new Segment[segmentCnt];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCnt);
+
+        for (int i = 0; i < segmentCnt; i++)
+            segments[i] = new Segment(segmentCapacity);
+    }
+
+    // Index of device component is placed on, or ABSENT.
+    public int getDevice(int componentId) {
+        int hash = IntConcurrentMap.mix(componentId);
+        Table t = segmentFor(hash).table;
+        int i = t.find(componentId, hash);
+
+        if (i < 0)
+            return ABSENT;
+
+        // Component could have been removed since it was found.
+        int place = (int) PLACE.getAcquire(t.places, i);
+        return place == REMOVED ? ABSENT : place - 1;
+    }
+
+    // Size of component, or 0 if it is not placed anywhere.
+    public long getSize(int componentId) {
+        int hash = IntConcurrentMap.mix(componentId);
+        Table t = segmentFor(hash).table;
+        int i = t.find(componentId, hash);
+
+        return i < 0 ? 0 : t.size(i);
+    }
+
+    // Moving average of prepares of component's earlier transfers, or 0 if there is none.
+    public long getExpectedPrepareNanos(int componentId) {
+        return getHistory(componentId, PREPARE);
+    }
+
+    // Moving average of performs of component's earlier transfers, or 0 if there is none.
+    public long getExpectedPerformNanos(int componentId) {
+        return getHistory(componentId, PERFORM);
+    }
+
+    private long getHistory(int componentId, int which) {
+        int hash = IntConcurrentMap.mix(componentId);
+        Table t = segmentFor(hash).table;
+        int i = t.find(componentId, hash);
+
+        return i < 0 ? 0 : t.history(i, which);
+    }
+
+    // Returns false if component is placed already, and leaves it as it is.
+    public Boolean putIfAbsent(int componentId, int deviceIndex, long size) {
+        int hash = IntConcurrentMap.mix(componentId);
+        return segmentFor(hash).put(componentId, hash, deviceIndex, size, 0, 0, true);
+    }
+
+    // Moves component that is placed already, keeping its size, or places new one.
+    public void put(int componentId, int deviceIndex, long size) {
+        put(componentId, deviceIndex, size, 0, 0);
+    }
+
+    // Same as above, and replaces history of component with given moving averages.
+    public void put(int componentId, int deviceIndex, long size, long expectedPrepareNanos,
+                    long expectedPerformNanos) {
+        int hash = IntConcurrentMap.mix(componentId);
+        segmentFor(hash).put(componentId, hash, deviceIndex, size, expectedPrepareNanos, expectedPerformNanos,
+                false);
+    }
+
+    public Boolean remove(int componentId) {
+        int hash = IntConcurrentMap.mix(componentId);
+        return segmentFor(hash).remove(componentId, hash);
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (Segment segment : segments)
+            size += segment.size;
+
+        return size;
+    }
+
+    // Weakly consistent: sees every component placed during whole iteration, on one of devices it was placed on.
+    public void forEach(PlacementConsumer action) {
+        for (Segment segment : segments)
+            segment.forEach(action);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+
+    private static final class Segment {
+        private final ReentrantLock access = new ReentrantLock();
+        // Replaced as a whole when segment is rebuilt, so readers always see matching columns.
+        private volatile Table table;
+        private volatile int size = 0;
+        // Slots with live or removed component.
+        private int used = 0;
+
+        public Segment(int capacity) {
+            table = new Table(capacity, false, false);
+        }
+
+        public Boolean put(int key, int hash, int deviceIndex, long size, long prepareNanos, long performNanos,
+                           Boolean onlyIfAbsent) {
+            access.lock();
+
+            try {
+                Table t = table;
+                int i = t.find(key, hash);
+                Boolean withHistory = prepareNanos != 0 || performNanos != 0 || t.history != null;
+
+                if (i >= 0) {
+                    if (onlyIfAbsent)
+                        return false;
+
+                    if (withHistory && t.history == null) {
+                        rebuild(this.size, t.sizes != null, true);
+                        t = table;
+                        i = t.find(key, hash);
+                    }
+
+                    t.setHistory(i, prepareNanos, performNanos);
+                    PLACE.setRelease(t.places, i, deviceIndex + 1);
+
+                    return false;
+                }
+
+                if ((used + 1) * 4 > t.keys.length * 3 || (size != 1 && t.sizes == null)
+                        || (withHistory && t.history == null)) {
+                    rebuild(this.size + 1, size != 1 || t.sizes != null, withHistory);
+                    t = table;
+                }
+
+                int mask = t.keys.length - 1;
+                for (i = hash & mask; t.places[i] != EMPTY; i = (i + 1) & mask) {
+                }
+
+                t.keys[i] = key;
+                if (t.sizes != null)
+                    t.sizes[i] = size;
+                t.setHistory(i, prepareNanos, performNanos);
+                PLACE.setRelease(t.places, i, deviceIndex + 1);
+                this.size++;
+                used++;
+
+                return true;
+            } finally {
+                access.unlock();
+            }
+        }
+
+        public Boolean remove(int key, int hash) {
+            access.lock();
+
+            try {
+                Table t = table;
+                int i = t.find(key, hash);
+
+                if (i < 0)
+                    return false;
+
+                PLACE.setRelease(t.places, i, REMOVED);
+                size--;
+
+                return true;
+            } finally {
+                access.unlock();
+            }
+        }
+
+        public void forEach(PlacementConsumer action) {
+            Table t = table;
+
+            for (int i = 0; i < t.keys.length; i++) {
+                int place = (int) PLACE.getAcquire(t.places, i);
+
+                if (place != EMPTY && place != REMOVED)
+                    action.accept(t.keys[i], place - 1, t.size(i));
+            }
+        }
+
+        // Has to be called with access. Copies live components to new table, dropping removed ones.
+        private void rebuild(int liveSize, Boolean withSizes, Boolean withHistory) {
+            Table old = table;
+            Table t = new Table(IntConcurrentMap.tableCapacity(liveSize), withSizes, withHistory);
+            int mask = t.keys.length - 1;
+
+            for (int j = 0; j < old.keys.length; j++) {
+                int place = old.places[j];
+
+                if (place == EMPTY || place == REMOVED)
+                    continue;
+
+                int i = IntConcurrentMap.mix(old.keys[j]) & mask;
+                while (t.places[i] != EMPTY)
+                    i = (i + 1) & mask;
+
+                t.keys[i] = old.keys[j];
+                t.places[i] = place;
+                if (withSizes)
+                    t.sizes[i] = old.size(j);
+                if (withHistory)
+                    t.setHistory(i, old.history(j, PREPARE), old.history(j, PERFORM));
+            }
+
+            used = size;
+            table = t;
+        }
+    }
+
+    private static final class Table {
+        private final int[] keys;
+        private final int[] places;
+        // Null while all components have size 1.
+        private final long[] sizes;
+        // Expected prepare and perform of component in slot i at 2 * i and 2 * i + 1,
+        // null while no component has history.
+        private final long[] history;
+
+        public Table(int capacity, Boolean withSizes, Boolean withHistory) {
+            keys = new int[capacity];
+            places = new int[capacity];
+            sizes = withSizes ? new long[capacity] : null;
+            history = withHistory ? new long[capacity * 2] : null;
+        }
+
+        // Slot of live component, or -1.
+        public int find(int key, int hash) {
+            int mask = keys.length - 1;
+
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int place = (int) PLACE.getAcquire(places, i);
+
+                if (place == EMPTY)
+                    return -1;
+
+                if (place != REMOVED && keys[i] == key)
+                    return i;
+            }
+        }
+
+        public long size(int i) {
+            return sizes == null ? 1 : sizes[i];
+        }
+
+        public long history(int i, int which) {
+            return history == null ? 0 : (long) HISTORY.getOpaque(history, 2 * i + which);
+        }
+
+        // Has to be called with access of segment. Does nothing without history column, which has to be there
+        // if any of given values is not 0.
+        public void setHistory(int i, long prepareNanos, long performNanos) {
+            if (history == null)
+                return;
+
+            HISTORY.setOpaque(history, 2 * i + PREPARE, prepareNanos);
+            HISTORY.setOpaque(history, 2 * i + PERFORM, performNanos);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Immutable snapshot of placement of StorageSystemImpl, taken without any locks, see snapshotPlacement.
+// When consistent, placement is exactly as it was at one moment, between transfers finishing.
+// Otherwise each component is where it was at some moment during the snapshot.
+// Transfers in flight are always seen one by one, as they were at some moment during the snapshot.
+public final class PlacementView {
+
+    public static final class InFlightTransfer {
+        private final ComponentId componentId;
+        private final DeviceId sourceDeviceId;
+        private final DeviceId destinationDeviceId;
+
+        InFlightTransfer(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId) {
+            this.componentId = componentId;
+            this.sourceDeviceId = sourceDeviceId;
+            this.destinationDeviceId = destinationDeviceId;
+        }
+
+        public ComponentId getComponentId() {
+            return componentId;
+        }
+
+        // Null for adding.
+        public DeviceId getSourceDeviceId() {
+            return sourceDeviceId;
+        }
+
+        // Null for removing.
+        public DeviceId getDestinationDeviceId() {
+            return destinationDeviceId;
+        }
+
+        @Override
+        public String toString() {
+            return "Transfer of " + componentId + " from " + sourceDeviceId + " to " + destinationDeviceId;
+        }
+    }
+
+    private final Boolean consistent;
+    private final long version;
+    private final Map<ComponentId, DeviceId> placement;
+    private final Map<DeviceId, List<ComponentId>> deviceComponents;
+    private final Map<DeviceId, Long> deviceOccupancy;
+    private final Map<DeviceId, Long> deviceCapacities;
+    private final List<InFlightTransfer> inFlightTransfers;
+
+    PlacementView(Boolean consistent, long version, Map<ComponentId, DeviceId> placement,
+                  Map<DeviceId, List<ComponentId>> deviceComponents, Map<DeviceId, Long> deviceOccupancy,
+                  Map<DeviceId, Long> deviceCapacities, List<InFlightTransfer> inFlightTransfers) {
+        this.consistent = consistent;
+        this.version = version;
+        this.placement = Collections.unmodifiableMap(placement);
+        this.deviceComponents = deviceComponents;
+        this.deviceOccupancy = deviceOccupancy;
+        this.deviceCapacities = Collections.unmodifiableMap(deviceCapacities);
+        this.inFlightTransfers = Collections.unmodifiableList(inFlightTransfers);
+    }
+
+    public Boolean isConsistent() {
+        return consistent;
+    }
+
+    // Number of placement changes (finished transfers) made before consistent snapshot was taken.
+    // Two consistent snapshots with the same version hold the same placement.
+    public long getVersion() {
+        return version;
+    }
+
+    public Map<ComponentId, DeviceId> getPlacement() {
+        return placement;
+    }
+
+    // Null if component does not exist (or is still being added).
+    public DeviceId getComponentDevice(ComponentId componentId) {
+        return placement.get(componentId);
+    }
+
+    // Empty list for device without components.
+    public List<ComponentId> getComponentsOn(DeviceId deviceId) {
+        List<ComponentId> result = deviceComponents.get(deviceId);
+        return result == null ? List.of() : Collections.unmodifiableList(result);
+    }
+
+    // Sum of sizes of components placed on device, without space reserved by transfers coming in.
+    // Component placed on device gives its space away when its prepare ends, but leaves only when its perform does,
+    // so for a while occupancy may exceed capacity, even in consistent snapshot.
+    public long getDeviceOccupancy(DeviceId deviceId) {
+        return deviceOccupancy.getOrDefault(deviceId, 0L);
+    }
+
+    public Map<DeviceId, Long> getDeviceCapacities() {
+        return deviceCapacities;
+    }
+
+    public List<InFlightTransfer> getInFlightTransfers() {
+        return inFlightTransfers;
+    }
+}
@@ -0,0 +1,119 @@
+package cp2023.solution;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// Spin, then yield, then park, for waits that are often short: wakeups of transfers whose prepare and perform
+// take microseconds, and device access held for a few field updates. Thread that gets its permit while spinning
+// saves two context switches. Budget of spinning follows twice the latency of waits that ended within
+// MAX_SPIN_NANOS, and shrinks when waits take longer, so threads that wait long do not burn processor.
+// Yield that gave processor away for more than SLOW_YIELD_NANOS means other threads keep it busy and take whole
+// time slices before waiter runs again, so yielding stops for YIELD_BACKOFF waits. Without a second processor
+// nobody can signal while waiter spins, and yield gives time slice to busy threads as often as to the signaller,
+// while parked thread is woken up with priority, so there waits park right away.
+// One instance is shared by all waits of one kind. Updates are not synchronized, races only lose samples.
+final class SpinWait {
+    private static final Boolean MULTIPROCESSOR = Runtime.getRuntime().availableProcessors() > 1;
+    private static final long MIN_SPIN_NANOS = 1_000;
+    private static final long MAX_SPIN_NANOS = 50_000;
+    private static final int YIELDS = 2;
+    private static final long SLOW_YIELD_NANOS = 500_000;
+    private static final int YIELD_BACKOFF = 256;
+
+    private volatile long spinNanos = MIN_SPIN_NANOS;
+    // Waits left that do not yield.
+    private volatile int yieldBackoff = 0;
+
+    public long getSpinNanos() {
+        return MULTIPROCESSOR ? spinNanos : 0;
+    }
+
+    private int getYields() {
+        if (!MULTIPROCESSOR)
+            return 0;
+
+        int backoff = yieldBackoff;
+
+        if (backoff == 0)
+            return YIELDS;
+
+        yieldBackoff = backoff - 1;
+        return 0;
+    }
+
+    // Returns false if it took so long that yielding should stop for a while.
+    private Boolean yieldBriefly() {
+        long start = System.nanoTime();
+        Thread.yield();
+
+        if (System.nanoTime() - start <= SLOW_YIELD_NANOS)
+            return true;
+
+        yieldBackoff = YIELD_BACKOFF;
+        return false;
+    }
+
+    // Waits until permit is passed, see Handoff.await.
+    public void await(Handoff permit) {
+        if (permit.isSignalled())
+            return;
+
+        long start = System.nanoTime();
+        long budget = getSpinNanos();
+
+        while (!permit.isSignalled() && System.nanoTime() - start < budget)
+            Thread.onSpinWait();
+
+        for (int i = getYields(); i > 0 && !permit.isSignalled(); i--) {
+            if (!yieldBriefly())
+                break;
+        }
+
+        permit.await();
+        record(System.nanoTime() - start);
+    }
+
+    // Acquires lock, spinning and yielding before blocking on it.
+    public void lock(ReentrantLock lock) {
+        if (lock.tryLock())
+            return;
+
+        long start = System.nanoTime();
+        long budget = getSpinNanos();
+
+        while (System.nanoTime() - start < budget) {
+            Thread.onSpinWait();
+
+            if (!lock.isLocked() && lock.tryLock()) {
+                record(System.nanoTime() - start);
+                return;
+            }
+        }
+
+        for (int i = getYields(); i > 0; i--) {
+            Boolean quick = yieldBriefly();
+
+            if (lock.tryLock()) {
+                record(System.nanoTime() - start);
+                return;
+            }
+
+            if (!quick)
+                break;
+        }
+
+        lock.lock();
+        record(System.nanoTime() - start);
+    }
+
+    // waitedNanos is whole time of wait, spinning, yielding and parking.
+    private void record(long waitedNanos) {
+        long budget = spinNanos;
+
+        if (waitedNanos <= MAX_SPIN_NANOS)
+            budget += (2 * waitedNanos - budget) / 8;
+        else
+            budget -= budget / 8;
+
+        spinNanos = Math.max(MIN_SPIN_NANOS, Math.min(MAX_SPIN_NANOS, budget));
+    }
+}
@@ -7,19 +7,98 @@
  */
 package cp2023.solution;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import cp2023.base.ComponentId;
 import cp2023.base.DeviceId;
-import cp2023.base.StorageSystem;
 
 
 public final class StorageSystemFactory {
 
-    public static StorageSystem newSystem(
+    // Records in one log segment (24 bytes each), a new snapshot is written whenever segment fills up.
+    private static final int LOG_SEGMENT_RECORDS = 1 << 20;
+
+    public static ManagedStorageSystem newSystem(
             Map<DeviceId, Integer> deviceTotalSlots,
             Map<ComponentId, DeviceId> componentPlacement) {
         return new StorageSystemImpl(deviceTotalSlots, componentPlacement);
     }
 
+    // Same as newSystem, with devices and placement given as parallel arrays of int ids:
+    // device deviceIds[i] has deviceTotalSlots[i] slots, and component componentIds[j] is on componentDevices[j].
+    public static ManagedStorageSystem newSystem(
+            int[] deviceIds,
+            int[] deviceTotalSlots,
+            int[] componentIds,
+            int[] componentDevices) {
+        return new StorageSystemImpl(
+                deviceIds, deviceTotalSlots, componentIds, componentDevices, ForkJoinPool.commonPool());
+    }
+
+    // Devices with given capacities and components with given sizes, in any units as long as they are the same.
+    // Components missing in componentSizes have size 1, and so do components added by plain ComponentTransfer.
+    public static ManagedStorageSystem newWeightedSystem(
+            Map<DeviceId, Long> deviceCapacities,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Map<ComponentId, Long> componentSizes,
+            Executor executor) {
+        return new StorageSystemImpl(deviceCapacities, componentPlacement, componentSizes, executor);
+    }
+
+    public static ManagedStorageSystem newAsyncSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor executor) {
+        return new StorageSystemImpl(deviceTotalSlots, componentPlacement, executor);
+    }
+
+    // Same as newAsyncSystem, but devices are split into shards given by deviceShards, which has to name one
+    // for every device. Transfers between devices of one shard usually do not wait for transfers in other shards,
+    // so devices that often exchange components should share a shard.
+    public static ManagedStorageSystem newShardedSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Map<DeviceId, Integer> deviceShards,
+            Executor executor) {
+        return new StorageSystemImpl(deviceTotalSlots, componentPlacement, executor, deviceShards);
+    }
+
+    // Same as newAsyncSystem, but every finished transfer is logged in directory, which has to hold
+    // no earlier system. Transfer returns only after its record is on disk.
+    public static ManagedStorageSystem newDurableSystem(
+            Path directory,
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor executor) {
+        try {
+            if (!PlacementSnapshot.listNumbers(directory, "snapshot-").isEmpty())
+                throw new IllegalArgumentException("Directory " + directory + " already holds storage system.");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return new StorageSystemImpl(deviceTotalSlots, componentPlacement, executor,
+                directory, 0, LOG_SEGMENT_RECORDS);
+    }
+
+    // Rebuilds system created with newDurableSystem from its newest snapshot and log written after it.
+    public static ManagedStorageSystem recoverDurableSystem(Path directory, Executor executor) {
+        PlacementSnapshot recovered;
+
+        try {
+            recovered = PlacementSnapshot.recover(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return new StorageSystemImpl(recovered.deviceIds, recovered.deviceCapacities, recovered.componentIds,
+                recovered.componentDevices, recovered.componentSizes, null, executor, directory, recovered.segmentNumber,
+                LOG_SEGMENT_RECORDS);
+    }
+
 }
@@ -3,454 +3,1428 @@ package cp2023.solution;
 import cp2023.base.ComponentId;
 import cp2023.base.ComponentTransfer;
 import cp2023.base.DeviceId;
-import cp2023.base.StorageSystem;
+import cp2023.base.PrioritizedComponentTransfer;
+import cp2023.base.SizedComponentTransfer;
 import cp2023.exceptions.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
-
-public class StorageSystemImpl implements StorageSystem {
-    private final ConcurrentMap<DeviceId, Device> devices = new ConcurrentHashMap<>();
-    private final ConcurrentMap<ComponentId, Component> components =  new ConcurrentHashMap<>();
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public class StorageSystemImpl implements ManagedStorageSystem {
+    // Keyed by int value of DeviceId, and by index of device, see Device.getIndex.
+    private final IntConcurrentMap<Device> devices;
+    private final Device[] devicesByIndex;
+    // Device and size of every placed component, changed only by transfer that claimed it, when it finishes.
+    private final PlacementTable placementTable;
+    // State of components that are claimed by transfers, keyed by int value of ComponentId. Component is here
+    // for as long as it is claimed, and an added one is placed in placementTable before it leaves.
+    private final IntConcurrentMap<Component> transferred = new IntConcurrentMap<>(0);
+    // Runs prepare and perform of transfers started with executeAsync.
+    private final Executor executor;
+
+    // System-wide metrics, per device ones are kept by Device.
+    private final LongAdder transfersAdmitted = new LongAdder();
+    private final LongAdder transfersRejected = new LongAdder();
+    private final LongAdder transfersFinished = new LongAdder();
+    private final LongAdder cyclesResolved = new LongAdder();
+    private final LongAdder cycleComponents = new LongAdder();
+    private final LatencyHistogram admissionTimes = new LatencyHistogram();
+
+    // Placement changes (finished transfers) that started and that ended, which let snapshotPlacement
+    // check without locks that no component changed its device while placement was read.
+    private static final int SNAPSHOT_ATTEMPTS = 4;
+    private final LongAdder placementChangesStarted = new LongAdder();
+    private final LongAdder placementChangesEnded = new LongAdder();
+
+    // Lifecycle events of transfers, published only while someone is subscribed.
+    private static final int EVENT_FEED_CAPACITY = 1 << 14;
+    private static final int EVENT_BATCH = 256;
+    private final TransferEventFeed events;
+
+    // Waits of execute for wakeups to prepare, to perform and for I/O permits, each tuned separately,
+    // since waits for space are usually much longer than the others.
+    private final SpinWait prepareWakeups = new SpinWait();
+    private final SpinWait performWakeups = new SpinWait();
+    private final SpinWait ioWakeups = new SpinWait();
+
+    // Chooses which prepared transfer leaving a full device gives its slot to transfer coming in.
+    private volatile HandoffPolicy handoffPolicy = HandoffPolicy.SOONEST_FREE;
+
+    // Log of finished transfers, or null if system is not durable.
+    private final Path logDirectory;
+    private final PlacementLog placementLog;
 
     public StorageSystemImpl(
             Map<DeviceId, Integer> deviceTotalSlots,
             Map<ComponentId, DeviceId> componentPlacement) {
+        this(deviceTotalSlots, componentPlacement, ForkJoinPool.commonPool());
+    }
+
+    public StorageSystemImpl(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor executor) {
+        this(deviceTotalSlots, componentPlacement, executor, null, 0, 0);
+    }
 
-        if (deviceTotalSlots == null || componentPlacement == null)
+    // Devices with given capacities and components with given sizes, in any units as long as they are the same.
+    // Components missing in componentSizes have size 1.
+    public StorageSystemImpl(
+            Map<DeviceId, Long> deviceCapacities,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Map<ComponentId, Long> componentSizes,
+            Executor executor) {
+        this(deviceIds(deviceCapacities), capacities(deviceCapacities),
+                componentIds(componentPlacement), componentDevices(componentPlacement),
+                componentSizes(componentPlacement, componentSizes), null, executor, null, 0, 0);
+    }
+
+    // Devices are split into shards, each deviceShards value naming one. Transfers inside one shard wait and
+    // resolve cycles only with access to its part of wait-for graph, as long as no transfer between shards waits.
+    public StorageSystemImpl(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor executor,
+            Map<DeviceId, Integer> deviceShards) {
+        this(deviceIds(deviceTotalSlots), capacities(deviceTotalSlots),
+                componentIds(componentPlacement), componentDevices(componentPlacement), null,
+                deviceShards(deviceTotalSlots, deviceShards), executor, null, 0, 0);
+    }
+
+    // With placement log, see below.
+    StorageSystemImpl(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor executor,
+            Path logDirectory,
+            long firstSegment,
+            int segmentRecords) {
+        this(deviceIds(deviceTotalSlots), capacities(deviceTotalSlots),
+                componentIds(componentPlacement), componentDevices(componentPlacement), null, null, executor,
+                logDirectory, firstSegment, segmentRecords);
+    }
+
+    // Device deviceIds[i] has deviceTotalSlots[i] slots, component componentIds[j] is placed on componentDevices[j].
+    public StorageSystemImpl(
+            int[] deviceIds,
+            int[] deviceTotalSlots,
+            int[] componentIds,
+            int[] componentDevices,
+            Executor executor) {
+        this(deviceIds, deviceTotalSlots == null ? null : Arrays.stream(deviceTotalSlots).asLongStream().toArray(),
+                componentIds, componentDevices, null, null, executor, null, 0, 0);
+    }
+
+    // Device deviceIds[i] has capacity deviceCapacities[i], component componentIds[j] of size componentSizes[j]
+    // is placed on componentDevices[j].
+    public StorageSystemImpl(
+            int[] deviceIds,
+            long[] deviceCapacities,
+            int[] componentIds,
+            int[] componentDevices,
+            long[] componentSizes,
+            Executor executor) {
+        this(deviceIds, deviceCapacities, componentIds, componentDevices, componentSizes, null, executor, null, 0, 0);
+    }
+
+    // Same as above, but componentSizes can be null when all components have size 1, and device deviceIds[i]
+    // is in shard deviceShards[i], or all are in one when deviceShards is null. If logDirectory is not null,
+    // logs every finished transfer there, in segments of segmentRecords records starting with firstSegment,
+    // and writes snapshot whenever new segment starts.
+    StorageSystemImpl(
+            int[] deviceIds,
+            long[] deviceCapacities,
+            int[] componentIds,
+            int[] componentDevices,
+            long[] componentSizes,
+            int[] deviceShards,
+            Executor executor,
+            Path logDirectory,
+            long firstSegment,
+            int segmentRecords) {
+
+        if (deviceIds == null || deviceCapacities == null || componentIds == null || componentDevices == null
+                || executor == null)
             throw new IllegalArgumentException("Attempt at creating StorageSystem with null argument.");
 
-        Map<DeviceId, Queue<Component>> devicesComponents = new HashMap<>();
+        if (deviceIds.length != deviceCapacities.length || componentIds.length != componentDevices.length
+                || (componentSizes != null && componentIds.length != componentSizes.length)
+                || (deviceShards != null && deviceIds.length != deviceShards.length))
+            throw new IllegalArgumentException("Attempt at creating StorageSystem with arrays of different length.");
 
-        for (var entry : componentPlacement.entrySet()) {
-            if (entry.getValue() == null || entry.getKey() == null)
-                throw new IllegalArgumentException("Attempt at creating StorageSystem with null argument.");
+        devices = new IntConcurrentMap<>(deviceIds.length);
+        devicesByIndex = new Device[deviceIds.length];
+        placementTable = new PlacementTable(componentIds.length);
 
-            Queue<Component> q = devicesComponents.get(entry.getValue());
-            Component c = new Component(entry.getKey(), null);
-            if (q == null)
-                devicesComponents.put(
-                        entry.getValue(),
-                        new LinkedList<>(
-                                List.of(c)));
-            else
-                q.add(c);
+        BulkLoad.loadDevices(devices, devicesByIndex, deviceIds, deviceCapacities);
+        BulkLoad.loadComponents(devices, placementTable, componentIds, componentDevices, componentSizes);
+
+        if (deviceShards == null) {
+            waitForGraph = new WaitForGraph(devices.values());
+        } else {
+            Map<Device, Integer> shards = new HashMap<>();
 
-            if(components.put(entry.getKey(), c) != null)
-                throw new IllegalArgumentException("Attempt at creating StorageSystem with duplicate component.");
+            for (int i = 0; i < deviceIds.length; i++)
+                shards.put(devices.get(deviceIds[i]), deviceShards[i]);
+
+            waitForGraph = WaitForGraph.sharded(devices.values(), shards);
+        }
+        this.executor = executor;
+        events = new TransferEventFeed(EVENT_FEED_CAPACITY);
+        this.logDirectory = logDirectory;
+
+        if (logDirectory != null) {
+            placementLog = new PlacementLog(logDirectory, firstSegment, segmentRecords, segment -> {
+                try {
+                    executor.execute(() -> writeSnapshot(segment));
+                } catch (RejectedExecutionException e) {
+                    // Segments stay until some later snapshot, recovery just replays more of them.
+                }
+            });
+            writeSnapshot(firstSegment);
+        } else {
+            placementLog = null;
         }
+    }
+
+    private static int[] deviceIds(Map<DeviceId, ? extends Number> deviceCapacities) {
+        if (deviceCapacities == null)
+            return null;
 
-        for (var entry : deviceTotalSlots.entrySet()) {
-            if (entry.getValue() == null || entry.getKey() == null)
+        int[] result = new int[deviceCapacities.size()];
+        int i = 0;
+
+        for (var entry : deviceCapacities.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null)
                 throw new IllegalArgumentException("Attempt at creating StorageSystem with null argument.");
 
-            Queue<Component> q = devicesComponents.remove(entry.getKey());
-            Device d;
+            result[i++] = entry.getKey().intValue();
+        }
 
-            if (q == null)
-                q = new LinkedList<>();
+        return result;
+    }
 
-            d = new Device(
-                    entry.getKey(),
-                    entry.getValue(),
-                    q.size());
+    // In the same order as deviceIds.
+    private static int[] deviceShards(Map<DeviceId, Integer> deviceTotalSlots, Map<DeviceId, Integer> deviceShards) {
+        if (deviceTotalSlots == null || deviceShards == null)
+            throw new IllegalArgumentException("Attempt at creating StorageSystem with null argument.");
 
-            devices.put(entry.getKey(),d);
+        int[] result = new int[deviceTotalSlots.size()];
+        int i = 0;
 
-            for (var entry2 : q) {
-                entry2.setCurrentDevice(d);
-            }
-            if (entry.getValue() == 0)
-                throw new IllegalArgumentException("Device " + entry.getKey() + " with size 0 is not allowed.");
-            if (entry.getValue() < q.size())
-                throw new IllegalArgumentException("Device " + entry.getKey() + " has more components than size.");
+        for (DeviceId deviceId : deviceTotalSlots.keySet()) {
+            Integer shard = deviceShards.get(deviceId);
+
+            if (shard == null)
+                throw new IllegalArgumentException("Attempt at creating StorageSystem with device without shard.");
+
+            result[i++] = shard;
         }
 
-        if (!devicesComponents.isEmpty())
-            throw new IllegalArgumentException("Attempt at creating StorageSystem with device without declared size.");
+        return result;
     }
 
-    private final Semaphore transferBeginProcedureLock = new Semaphore(1, true);
+    private static long[] capacities(Map<DeviceId, ? extends Number> deviceCapacities) {
+        if (deviceCapacities == null)
+            return null;
 
-    public void execute(ComponentTransfer transfer) throws TransferException {
-        try {
-            transferBeginProcedureLock.acquire();
+        return deviceCapacities.values().stream().mapToLong(Number::longValue).toArray();
+    }
 
-            // Setting up helpful variables.
-            DeviceId sourceDeviceId = transfer.getSourceDeviceId();
-            DeviceId destinationDeviceId = transfer.getDestinationDeviceId();
+    private static int[] componentIds(Map<ComponentId, DeviceId> componentPlacement) {
+        if (componentPlacement == null)
+            return null;
 
-            Device sourceDevice = null;
-            if (sourceDeviceId != null)
-                sourceDevice = devices.get(sourceDeviceId);
+        int[] result = new int[componentPlacement.size()];
+        int i = 0;
 
-            Device destinationDevice = null;
-            if (destinationDeviceId != null)
-                destinationDevice = devices.get(destinationDeviceId);
+        for (var entry : componentPlacement.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null)
+                throw new IllegalArgumentException("Attempt at creating StorageSystem with null argument.");
 
-            ComponentId transferredComponentId = transfer.getComponentId();
-            Component transferredComponent = components.get(transferredComponentId);
+            result[i++] = entry.getKey().intValue();
+        }
 
-            try {
-                // Check for ComponentIsBeingOperatedOn
-                if (transferredComponent != null && transferredComponent.isTransferred())
-                    throw new ComponentIsBeingOperatedOn(transferredComponentId);
-
-                // Check for IllegalTransferType.
-                if (sourceDeviceId == null && destinationDeviceId == null)
-                    throw new IllegalTransferType(transferredComponentId);
-
-                // Check for DeviceDoesNotExists.
-                if (sourceDeviceId != null && sourceDevice == null)
-                    throw new DeviceDoesNotExist(sourceDeviceId);
-
-                if (destinationDeviceId != null && destinationDevice == null)
-                    throw new DeviceDoesNotExist(destinationDeviceId);
-
-                // Check for ComponentAlreadyExists, assuming component exists on source device until end of transfer prepare.
-                {
-                    Device d;
-                    if (sourceDeviceId == null && transferredComponent != null) {
-                        d = transferredComponent.getCurrentDevice();
-                        if (d != null)
-                            throw new ComponentAlreadyExists(transferredComponentId, d.getId());
-                        else
-                            throw new ComponentAlreadyExists(transferredComponentId);
-                    }
-                }
+        return result;
+    }
 
-                // Check for ComponentDoesNotExist.
-                {
-                    DeviceId currentDeviceId = null;
+    private static int[] componentDevices(Map<ComponentId, DeviceId> componentPlacement) {
+        if (componentPlacement == null)
+            return null;
 
-                    if (transferredComponent != null) {
-                        Device d = transferredComponent.getCurrentDevice();
-                        if (d != null)
-                            currentDeviceId = d.getId();
-                    }
+        return componentPlacement.values().stream().mapToInt(DeviceId::intValue).toArray();
+    }
 
-                    if (sourceDeviceId != null && !sourceDeviceId.equals(currentDeviceId))
-                        throw new ComponentDoesNotExist(transferredComponentId, sourceDeviceId);
-                }
+    // In the same order as componentIds.
+    private static long[] componentSizes(Map<ComponentId, DeviceId> componentPlacement,
+                                         Map<ComponentId, Long> componentSizes) {
+        if (componentPlacement == null || componentSizes == null)
+            throw new IllegalArgumentException("Attempt at creating StorageSystem with null argument.");
 
-                // Check for ComponentDoesNotNeedTransfer.
-                // We know, that component is not operated on, so currentDevice will not change during this check.
-                {
-                    DeviceId currentDeviceId = null;
-                    if (transferredComponent != null && destinationDeviceId != null) {
-                        Device d = transferredComponent.getCurrentDevice();
-                        if (d != null)
-                            currentDeviceId = d.getId();
-                        if (destinationDeviceId.equals(currentDeviceId))
-                            throw new ComponentDoesNotNeedTransfer(transferredComponentId, destinationDeviceId);
-                    }
-                }
+        long[] result = new long[componentPlacement.size()];
+        int i = 0;
 
-            } catch (Exception e) {
-                transferBeginProcedureLock.release();
-                throw e;
-            }
+        for (ComponentId componentId : componentPlacement.keySet()) {
+            Long size = componentSizes.get(componentId);
+            result[i++] = size == null ? 1 : size;
+        }
 
-            // In case when we add new component.
-            if (transferredComponent == null) {
-                transferredComponent = new Component(transferredComponentId, null);
-                components.put(transferredComponentId, transferredComponent);
-            }
+        return result;
+    }
 
-            transferredComponent.setTransfer();
-            // Handling operation of adding component.
-            if (sourceDevice == null) {
-                destinationDevice.reserveSpot(transferredComponent);
-            } else if (destinationDevice == null) {
-                sourceDevice.acquireAccess();
-                
-                // We can start removing immediately.
-                transferredComponent.getWakeCallToPrepare().release();
-                transferredComponent.getWakeCallToPerform().release();
-
-                sourceDevice.releaseAccess();
-            } else {
-                if (!destinationDevice.reserveSpot(transferredComponent)) {
-                    // Try to find cycle of transfers.
-                    LinkedList<Component> cycle = new LinkedList<Component>();
-                    
-                    if (Device.findCycle(sourceDevice, new HashSet<>(), cycle)) {
-                        // Cycle was found.
-                        Component last = cycle.peekLast();
-
-                        for (Component entry : cycle) {
-                            last.setNextToPerform(entry);
-                            last = entry;
-                        }
-                        
-                        for (Component entry : cycle) {
-                            entry.getWakeCallToPrepare().release();
-                        }
-                    }
-                }
-            }
-            
-            transferBeginProcedureLock.release();
+    // Only transfers that have to wait in some prepareWaitLineIn acquire its access, so that every new waiting edge
+    // is checked for a cycle before the next one is added. Transfers that get a spot right away never touch it.
+    // With shards, this is their coordinator, and transfers inside a shard usually acquire only that shard.
+    private final WaitForGraph waitForGraph;
 
-            transferredComponent.getWakeCallToPrepare().acquire();
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        Component transferredComponent = admit(transfer);
 
-            if (sourceDevice != null) {
-                sourceDevice.acquireAccess();
+        prepareWakeups.await(transferredComponent.getWakeCallToPrepare());
 
-                //  Picking up transfer that can be prepared next.
-                if (transferredComponent.getNextToPerform() == null)
-                    transferredComponent.setNextToPerform(sourceDevice.getPrepareWaitLineIn().poll());
+        run(transfer, transferredComponent, false);
+    }
 
-                // Waking up transfer that reserved space after component moved in this transfer.
-                if (transferredComponent.getNextToPerform() != null)
-                    transferredComponent.getNextToPerform().getWakeCallToPrepare().release();
+    // Same as execute, but gives up if transfer does not get space on its destination within timeout,
+    // or if thread is interrupted before that, and then leaves everything as if it was never admitted.
+    // Once space is reserved transfer is executed as usual, since other transfers may already count on it,
+    // and interrupt only sets interrupt status once it is finished.
+    public void execute(ComponentTransfer transfer, long timeout, TimeUnit unit)
+            throws TransferException, InterruptedException {
+        if (unit == null)
+            throw new IllegalArgumentException("Time unit cannot be null.");
 
-                // If we didn't pick up any transfer, then leaving sign that one incoming transfer can be prepared.
-                if (transferredComponent.getNextToPerform() == null)
-                    sourceDevice.getPerformWaitSetOut().add(transferredComponent);
+        if (Thread.interrupted())
+            throw new InterruptedException();
 
-                sourceDevice.releaseAccess();
-            }
+        Component transferredComponent = admit(transfer);
+        Handoff wakeCallToPrepare = transferredComponent.getWakeCallToPrepare();
 
-            transfer.prepare();
+        boolean interrupted = false;
 
-            if (sourceDevice != null) {
-                sourceDevice.acquireAccess();
+        if (!wakeCallToPrepare.awaitNanos(unit.toNanos(timeout))) {
+            interrupted = Thread.interrupted();
 
-                // Removing option for left transfers to reserve space after transferred component.
-                sourceDevice.getPerformWaitSetOut().remove(transferredComponent);
-                
-                // Waking up transfer that reserved space after component moved in this transfer or releasing one spot on source device.
-                if (transferredComponent.getNextToPerform() != null)
-                    transferredComponent.getNextToPerform().getWakeCallToPerform().release();
-                else
-                    sourceDevice.chgUsedSpotsCnt(-1);
+            if (withdraw(transferredComponent)) {
+                if (interrupted)
+                    throw new InterruptedException();
+
+                throw new TransferTimedOut(transfer.getComponentId(), transfer.getDestinationDeviceId());
+            }
+
+            // Space was reserved in the meantime, so permit is on its way.
+            prepareWakeups.await(wakeCallToPrepare);
+        }
+
+        run(transfer, transferredComponent, interrupted);
+    }
 
-                sourceDevice.releaseAccess();
+    // Prepare and perform of transfer that got space, in calling thread. Waits ignore interrupts, and interrupt
+    // status is cleared before prepare and perform, and set again once transfer is finished, if thread was
+    // interrupted at any point (interrupted tells if it was before).
+    // Failure of prepare or perform is thrown only once transfer is finished, as in executeAsync, so that it
+    // gives back its space, permits and claim. Perform is skipped after failed prepare.
+    private void run(ComponentTransfer transfer, Component transferredComponent, boolean interrupted) {
+        interrupted |= Thread.interrupted();
+        Throwable failure = null;
+
+        beginPrepare(transferredComponent);
+        IoLimit reads = readLimit(transferredComponent);
+        awaitIo(reads, transferredComponent);
+        interrupted |= Thread.interrupted();
+        publish(TransferEvent.Type.PREPARE_STARTED, transferredComponent);
+        try {
+            transfer.prepare();
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        publish(TransferEvent.Type.PREPARE_FINISHED, transferredComponent);
+        if (reads != null)
+            reads.release();
+        endPrepare(transferredComponent);
+
+        performWakeups.await(transferredComponent.getWakeCallToPerform());
+
+        // No need to change anything on destinationDevice,
+        // since component is moving in space left after some other component.
+
+        if (failure == null) {
+            IoLimit writes = writeLimit(transferredComponent);
+            awaitIo(writes, transferredComponent);
+            interrupted |= Thread.interrupted();
+            transferredComponent.setPerformStartedAt(System.nanoTime());
+            publish(TransferEvent.Type.PERFORM_STARTED, transferredComponent);
+            try {
+                transfer.perform();
+            } catch (RuntimeException | Error e) {
+                failure = e;
             }
+            publish(TransferEvent.Type.PERFORM_FINISHED, transferredComponent);
+            if (writes != null)
+                writes.release();
+        }
 
-            transferredComponent.getWakeCallToPerform().acquire();
+        finishTransfer(transferredComponent);
 
-            // No need to change anything on destinationDevice,
-            // since component is moving in space left after some other component.
+        if (interrupted)
+            Thread.currentThread().interrupt();
 
-            transfer.perform();
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw (RuntimeException) failure;
+    }
 
-            transferredComponent.finishTransfer(destinationDevice);
+    // Same as execute, but instead of blocking caller until transfer is allowed to go on,
+    // runs prepare and perform on executor when their turn comes.
+    // Failure of prepare or perform, or rejection of task by executor, only fails returned future, transfer itself
+    // is finished as usual.
+    public CompletableFuture<Void> executeAsync(ComponentTransfer transfer) throws TransferException {
+        Component transferredComponent = admit(transfer);
 
-        } catch (InterruptedException e) {
-            // From task assumptions we don't need to worry about InterruptedException.
-            throw new RuntimeException("panic: unexpected thread interruption");
-        }
+        return schedule(transfer, transferredComponent);
     }
-    private class Component {
-        private final ComponentId id;
-        private Device currentDevice;
-        private volatile Boolean isTransferred = false;
-        private Semaphore wakeCallToPrepare = new Semaphore(0, true);
-        private Semaphore wakeCallToPerform = new Semaphore(0, true);
-        // Component that reserved space after this component (only used during transfer).
-        private Component nextToPerform = null;
-        public Component(ComponentId id, Device currentDevice) {
-            this.id = id;
-            this.currentDevice = currentDevice;
+
+    // Same as executeAsync, but if transfer does not get space on its destination within timeout,
+    // it is withdrawn as if it was cancelled, and returned future fails with TransferTimedOut.
+    public CompletableFuture<Void> executeAsync(ComponentTransfer transfer, long timeout, TimeUnit unit)
+            throws TransferException {
+        if (unit == null)
+            throw new IllegalArgumentException("Time unit cannot be null.");
+
+        Component transferredComponent = admit(transfer);
+        DeviceId destinationDeviceId = transfer.getDestinationDeviceId();
+        TransferFuture result = schedule(transfer, transferredComponent);
+
+        // Transfer that got space right away cannot time out.
+        if (!result.isSettled()) {
+            CompletableFuture.delayedExecutor(timeout, unit, executor).execute(() -> {
+                if (result.withdraw())
+                    result.completeExceptionally(new TransferTimedOut(transfer.getComponentId(), destinationDeviceId));
+            });
         }
 
-        public ComponentId getId() {
-            return id;
+        return result;
+    }
+
+    // Admits all transfers at once, or none of them if any is invalid.
+    // Cycles formed by transfers from the batch are resolved right away, without waiting in any prepareWaitLineIn,
+    // and remaining transfers that have to wait are checked for cycles under single wait graph access.
+    public List<CompletableFuture<Void>> executeAllAsync(Collection<? extends ComponentTransfer> transfers)
+            throws TransferException {
+        long start = System.nanoTime();
+        List<ComponentTransfer> batch = new ArrayList<>(transfers);
+        List<Component> batchComponents = new ArrayList<>(batch.size());
+
+        // Claims taken so far are released whatever stops the batch, also null transfer or null id,
+        // so that its components are not left claimed forever.
+        try {
+            for (ComponentTransfer transfer : batch) {
+                Device sourceDevice = getDevice(transfer.getSourceDeviceId());
+                Device destinationDevice = getDevice(transfer.getDestinationDeviceId());
+
+                Component transferredComponent = claimComponent(transfer, sourceDevice, destinationDevice);
+                batchComponents.add(transferredComponent);
+                transferredComponent.setDestinationDevice(destinationDevice);
+                setUrgency(transferredComponent, transfer);
+            }
+        } catch (TransferException | RuntimeException e) {
+            for (Component transferredComponent : batchComponents)
+                releaseClaim(transferredComponent);
+
+            transfersRejected.add(batch.size());
+            throw e;
         }
 
-        public Device getCurrentDevice() {
-            return currentDevice;
+        for (Component transferredComponent : batchComponents)
+            publish(TransferEvent.Type.ADMITTED, transferredComponent);
+
+        List<Component> waiting = new ArrayList<>();
+
+        for (Component transferredComponent : resolveBatchCycles(batchComponents)) {
+            if (!reserveWithoutWaitGraph(transferredComponent))
+                waiting.add(transferredComponent);
         }
 
-        public void setCurrentDevice(Device currentDevice) {
-            this.currentDevice = currentDevice;
+        if (!waiting.isEmpty()) {
+            waitForGraph.acquireAccess();
+
+            try {
+                for (Component transferredComponent : waiting)
+                    reserveOrWait(waitForGraph, transferredComponent, false);
+
+                if (waitForGraph.hasDeferred())
+                    retryDeferredLocked(waitForGraph);
+            } finally {
+                waitForGraph.releaseAccess();
+            }
         }
 
-        public Semaphore getWakeCallToPrepare() {
-            return wakeCallToPrepare;
+        transfersAdmitted.add(batch.size());
+        admissionTimes.record(System.nanoTime() - start);
+
+        List<CompletableFuture<Void>> results = new ArrayList<>(batch.size());
+
+        for (int i = 0; i < batch.size(); i++)
+            results.add(schedule(batch.get(i), batchComponents.get(i)));
+
+        return results;
+    }
+
+    // Plans moves from current placement to target one, see TransferPlan. Placement is read without locks,
+    // so it should not change until plan is executed. Otherwise its transfers may fail with TransferException.
+    public TransferPlan planTransfers(Map<ComponentId, DeviceId> target) {
+        Map<DeviceId, Long> capacities = new HashMap<>();
+        Map<ComponentId, DeviceId> placement = new HashMap<>();
+        Map<ComponentId, Long> sizes = new HashMap<>();
+
+        devices.forEach((id, d) -> capacities.put(d.getId(), d.getCapacity()));
+        placementTable.forEach((id, deviceIndex, size) -> {
+            ComponentId componentId = new ComponentId(id);
+
+            placement.put(componentId, devicesByIndex[deviceIndex].getId());
+            sizes.put(componentId, size);
+        });
+
+        return TransferPlan.of(placement, sizes, capacities, target);
+    }
+
+    // Device component is placed on, or null if it does not exist (or is still being added).
+    // Reads placement table without locks, so it never waits and never delays transfers.
+    public DeviceId getComponentDevice(ComponentId componentId) {
+        if (componentId == null)
+            throw new IllegalArgumentException("Component id cannot be null.");
+
+        int deviceIndex = placementTable.getDevice(componentId.intValue());
+
+        return deviceIndex == PlacementTable.ABSENT ? null : devicesByIndex[deviceIndex].getId();
+    }
+
+    // Space taken on device by components placed there and by transfers that reserved space on it.
+    // Reads only volatile fields, so it never waits and never delays transfers.
+    public long getDeviceUsedSpace(DeviceId deviceId) {
+        Device device = getDevice(deviceId);
+
+        if (device == null)
+            throw new IllegalArgumentException("Device " + deviceId + " does not exist.");
+
+        return device.getUsedSpace();
+    }
+
+    // Components placed on device, read from its index without locks, so it takes time proportional to their number.
+    // Component moving to or from device at the moment may or may not be listed.
+    public List<ComponentId> getComponentsOn(DeviceId deviceId) {
+        Device device = getDevice(deviceId);
+
+        if (device == null)
+            throw new IllegalArgumentException("Device " + deviceId + " does not exist.");
+
+        List<ComponentId> result = new ArrayList<>();
+
+        device.forEachPlaced((id, size) -> result.add(new ComponentId(id)));
+
+        return result;
+    }
+
+    // Plans moving every component placed on device elsewhere, the largest first, each one to device with
+    // the most free space left. Components that are already being transferred are left out. Only index of
+    // device and free space of the others are read, without locks, so nothing should be transferred to device
+    // until plan is executed. Throws IllegalArgumentException if some component fits on no other device.
+    public TransferPlan planEvacuation(DeviceId deviceId) {
+        Device device = getDevice(deviceId);
+
+        if (device == null)
+            throw new IllegalArgumentException("Device " + deviceId + " does not exist.");
+
+        // Pairs of component id and size.
+        List<long[]> evacuated = new ArrayList<>();
+
+        device.forEachPlaced((id, size) -> {
+            if (transferred.get(id) == null)
+                evacuated.add(new long[]{id, size});
+        });
+
+        evacuated.sort(Comparator.comparingLong((long[] c) -> c[1]).reversed());
+
+        // Plan sees only evacuated components, so other devices are given their free space as capacity.
+        Map<DeviceId, Long> capacities = new HashMap<>();
+        Map<ComponentId, DeviceId> placement = new HashMap<>();
+        Map<ComponentId, Long> sizes = new HashMap<>();
+        Map<ComponentId, DeviceId> target = new HashMap<>();
+        Map<Device, Long> free = new HashMap<>();
+        PriorityQueue<Device> mostFree = new PriorityQueue<>(
+                Comparator.comparingLong((Device d) -> free.get(d)).reversed());
+        long evacuatedSpace = 0;
+
+        devices.forEach((id, d) -> {
+            if (d == device)
+                return;
+
+            long space = Math.max(0, d.getCapacity() - d.getUsedSpace());
+            capacities.put(d.getId(), space);
+            free.put(d, space);
+            mostFree.add(d);
+        });
+
+        for (long[] c : evacuated) {
+            ComponentId componentId = new ComponentId((int) c[0]);
+            long size = c[1];
+            Device destination = mostFree.poll();
+
+            if (destination == null || free.get(destination) < size)
+                throw new IllegalArgumentException("Device " + deviceId + " cannot be evacuated, component "
+                        + componentId + " does not fit on any other device.");
+
+            free.merge(destination, -size, Long::sum);
+            mostFree.add(destination);
+
+            placement.put(componentId, deviceId);
+            sizes.put(componentId, size);
+            target.put(componentId, destination.getId());
+            evacuatedSpace += size;
         }
 
-        public Semaphore getWakeCallToPerform() {
-            return wakeCallToPerform;
+        capacities.put(deviceId, evacuatedSpace);
+
+        return TransferPlan.of(placement, sizes, capacities, target);
+    }
+
+    // Plans evacuation of device and executes it, with transfers created from moves by given function,
+    // see planEvacuation and TransferPlan.execute.
+    public void evacuateDevice(DeviceId deviceId, Function<TransferPlan.Move, ? extends ComponentTransfer> transfers)
+            throws TransferException {
+        if (transfers == null)
+            throw new IllegalArgumentException("Transfers of evacuation cannot be null.");
+
+        planEvacuation(deviceId).execute(this, transfers);
+    }
+
+    // Placement, occupancy of devices and transfers in flight, read without locks, see PlacementView.
+    // Placement is read again if some transfer finished in the meantime, a few times at most,
+    // after which snapshot that is not consistent is returned, so busy system cannot hold readers back.
+    public PlacementView snapshotPlacement() {
+        Map<DeviceId, Long> capacities = new HashMap<>();
+
+        devices.forEach((id, d) -> capacities.put(d.getId(), d.getCapacity()));
+
+        for (int attempt = 1; ; attempt++) {
+            // Ended is read before started, so when they are equal, no change was in progress in between.
+            long ended = placementChangesEnded.sum();
+            long started = placementChangesStarted.sum();
+            Map<ComponentId, DeviceId> placement = new HashMap<>();
+            Map<DeviceId, List<ComponentId>> deviceComponents = new HashMap<>();
+            Map<DeviceId, Long> occupancy = new HashMap<>();
+            List<PlacementView.InFlightTransfer> inFlight = new ArrayList<>();
+
+            placementTable.forEach((id, deviceIndex, size) -> {
+                ComponentId componentId = new ComponentId(id);
+                DeviceId d = devicesByIndex[deviceIndex].getId();
+
+                placement.put(componentId, d);
+                deviceComponents.computeIfAbsent(d, k -> new ArrayList<>()).add(componentId);
+                occupancy.merge(d, size, Long::sum);
+            });
+
+            transferred.forEach((id, c) -> {
+                Device d = c.getCurrentDevice();
+
+                // Destination is read between two reads of inFlight, and cleared after it, so transfer
+                // that finished in the meantime is skipped, not seen as removing its component.
+                if (c.isInFlight()) {
+                    Device destination = c.getDestinationDevice();
+
+                    if (c.isInFlight() && c.getCurrentDevice() == d)
+                        inFlight.add(new PlacementView.InFlightTransfer(c.getId(), d == null ? null : d.getId(),
+                                destination == null ? null : destination.getId()));
+                }
+            });
+
+            Boolean consistent = started == ended && placementChangesStarted.sum() == started;
+
+            if (consistent || attempt == SNAPSHOT_ATTEMPTS)
+                return new PlacementView(consistent, ended, placement, deviceComponents, occupancy, capacities,
+                        inFlight);
         }
+    }
+
+    // Delivers events of transfers from now on to consumer, in batches, on a thread of the event feed, never
+    // on system executor. Publishing never waits for subscribers, so one that falls too far behind loses
+    // the oldest events, see TransferEventSubscription.
+    public TransferEventSubscription subscribeEvents(Consumer<List<TransferEvent>> consumer) {
+        return subscribeEvents(consumer, null);
+    }
+
+    // Same as above, but events are delivered on given executor, or on a thread of the event feed if it is null.
+    // Executor should not be the one running transfers, or slow consumer may hold them back.
+    public TransferEventSubscription subscribeEvents(Consumer<List<TransferEvent>> consumer, Executor executor) {
+        if (consumer == null)
+            throw new IllegalArgumentException("Event consumer cannot be null.");
+
+        return events.subscribe(consumer, EVENT_BATCH, executor);
+    }
+
+    // Replaces HandoffPolicy.SOONEST_FREE, used by default. Applies to transfers admitted from now on.
+    public void setHandoffPolicy(HandoffPolicy handoffPolicy) {
+        if (handoffPolicy == null)
+            throw new IllegalArgumentException("Handoff policy cannot be null.");
+
+        this.handoffPolicy = handoffPolicy;
+    }
+
+    // Limits number of prepare calls of transfers leaving device and perform calls of transfers coming to it
+    // that run at the same time, IoLimit.UNLIMITED by default. Transfers wait for their turn inside
+    // prepare and perform phases, so cycles and chains still go through, only more slowly.
+    public void setDeviceIoLimits(DeviceId deviceId, int maxConcurrentReads, int maxConcurrentWrites) {
+        Device device = getDevice(deviceId);
+
+        if (device == null)
+            throw new IllegalArgumentException("Device " + deviceId + " does not exist.");
+
+        if (maxConcurrentReads <= 0 || maxConcurrentWrites <= 0)
+            throw new IllegalArgumentException("I/O limits of device " + deviceId + " have to be positive.");
+
+        device.getReadLimit().setLimit(maxConcurrentReads);
+        device.getWriteLimit().setLimit(maxConcurrentWrites);
+    }
+
+    // Lock-free snapshot of system-wide and per device counters.
+    public StorageSystemMetrics getMetrics() {
+        Map<DeviceId, StorageSystemMetrics.DeviceMetrics> deviceMetrics = new TreeMap<>();
+
+        devices.forEach((id, d) -> deviceMetrics.put(d.getId(), d.getMetrics()));
+
+        return new StorageSystemMetrics(transfersAdmitted.sum(), transfersRejected.sum(), transfersFinished.sum(),
+                cyclesResolved.sum(), cycleComponents.sum(), admissionTimes.snapshot(), deviceMetrics);
+    }
+
+    // Starts new log segment and writes snapshot for it in background, after which older segments are deleted.
+    public void checkpoint() {
+        if (placementLog == null)
+            throw new IllegalStateException("Storage system was created without placement log.");
 
-        public void setNextToPerform(Component nextToPerform) {
-            this.nextToPerform = nextToPerform;
+        placementLog.rotate();
+    }
+
+    // The same counters, ready to be registered in MBeanServer.
+    public StorageSystemMetricsMXBean getMetricsMXBean() {
+        return new StorageSystemMetricsBean(this);
+    }
+
+    // Future of transfer started with executeAsync. Until transfer gets space, cancel withdraws it, see withdraw.
+    // Afterwards cancel does nothing and returns false, since transfer is executed anyway.
+    private final class TransferFuture extends CompletableFuture<Void> {
+        private static final int QUEUED = 0;
+        private static final int WITHDRAWING = 1;
+        private static final int SETTLED = 2;
+
+        private final Component transferredComponent;
+        // Withdrawing and starting prepare exclude each other, so that component is never withdrawn
+        // from its next transfer, after this one finished.
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        TransferFuture(Component transferredComponent) {
+            this.transferredComponent = transferredComponent;
         }
 
-        public Component getNextToPerform() {
-            return nextToPerform;
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return withdraw() && super.cancel(mayInterruptIfRunning);
         }
 
-        public void setTransfer() {
-            isTransferred = true;
+        // Returns true if transfer was withdrawn, after which future has to be completed by caller.
+        Boolean withdraw() {
+            if (!state.compareAndSet(QUEUED, WITHDRAWING))
+                return false;
+
+            Boolean withdrawn = StorageSystemImpl.this.withdraw(transferredComponent);
+            state.set(SETTLED);
+
+            return withdrawn;
         }
-        
-        public Boolean isTransferred() {
-            return isTransferred;
+
+        // Called when transfer got space, before its prepare. Waits for withdraw that is already trying.
+        void start() {
+            while (!state.compareAndSet(QUEUED, SETTLED) && state.get() != SETTLED)
+                Thread.onSpinWait();
         }
-        
-        public void finishTransfer(Device destinationDevice) {
-            nextToPerform = null;
-            wakeCallToPrepare = new Semaphore(0, true);
-            wakeCallToPerform = new Semaphore(0, true);
-            if (destinationDevice == null)
-                components.remove(id);
-            currentDevice = destinationDevice;
-            isTransferred = false;
+
+        Boolean isSettled() {
+            return state.get() == SETTLED;
         }
-        @Override
-        public boolean equals(Object obj) {
-            if (! (obj instanceof Component)) {
-                return false;
+    }
+
+    // Runs prepare and perform of admitted transfer on executor. Returned future is completed only once transfer
+    // is finished, with its first failure if any, so caller completing it earlier changes nothing about transfer.
+    // Task that executor rejects is run by thread that submitted it, which holds no locks by then (see Handoff),
+    // with prepare and perform skipped, so that transfer still gives back its space, permits and claim.
+    private TransferFuture schedule(ComponentTransfer transfer, Component transferredComponent) {
+        TransferFuture result = new TransferFuture(transferredComponent);
+        // Failure of prepare, perform or submission of task. Tasks of transfer run one after another.
+        Throwable[] failure = {null};
+        Executor phases = task -> {
+            try {
+                executor.execute(task);
+            } catch (RuntimeException e) {
+                if (failure[0] == null)
+                    failure[0] = e;
+                task.run();
             }
-            return this.id == ((Component)obj).id;
-        }
+        };
+
+        Runnable performPhase = () -> {
+            // Perform is skipped after failure, so it does not need write permit either.
+            IoLimit writes = failure[0] == null ? writeLimit(transferredComponent) : null;
+
+            whenIoAllowed(writes, transferredComponent, phases, () -> {
+                if (failure[0] == null) {
+                    try {
+                        transferredComponent.setPerformStartedAt(System.nanoTime());
+                        publish(TransferEvent.Type.PERFORM_STARTED, transferredComponent);
+                        transfer.perform();
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
 
-        @Override
-        public int hashCode() {
-            return this.id.hashCode();
+                    publish(TransferEvent.Type.PERFORM_FINISHED, transferredComponent);
+                }
+
+                if (writes != null)
+                    writes.release();
+
+                finishTransfer(transferredComponent);
+
+                if (failure[0] == null)
+                    result.complete(null);
+                else
+                    result.completeExceptionally(failure[0]);
+            });
+        };
+
+        Runnable preparePhase = () -> {
+            result.start();
+            beginPrepare(transferredComponent);
+            IoLimit reads = failure[0] == null ? readLimit(transferredComponent) : null;
+
+            whenIoAllowed(reads, transferredComponent, phases, () -> {
+                if (failure[0] == null) {
+                    try {
+                        publish(TransferEvent.Type.PREPARE_STARTED, transferredComponent);
+                        transfer.prepare();
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+
+                    publish(TransferEvent.Type.PREPARE_FINISHED, transferredComponent);
+                }
+
+                if (reads != null)
+                    reads.release();
+
+                endPrepare(transferredComponent);
+
+                // Usually spot is already free, so perform goes on in the same task.
+                Handoff wakeCallToPerform = transferredComponent.getWakeCallToPerform();
+                if (wakeCallToPerform.isSignalled())
+                    performPhase.run();
+                else
+                    wakeCallToPerform.whenSignalled(phases, performPhase);
+            });
+        };
+
+        transferredComponent.getWakeCallToPrepare().whenSignalled(phases, preparePhase);
+
+        return result;
+    }
+
+    // Limit of prepare on source device, or null if there is none. Adding component has nothing to read.
+    private static IoLimit readLimit(Component transferredComponent) {
+        Device sourceDevice = transferredComponent.getCurrentDevice();
+
+        if (sourceDevice == null || !sourceDevice.getReadLimit().isLimited())
+            return null;
+
+        return sourceDevice.getReadLimit();
+    }
+
+    // Limit of perform on destination device, or null if there is none. Removing component has nothing to write.
+    private static IoLimit writeLimit(Component transferredComponent) {
+        Device destinationDevice = transferredComponent.getDestinationDevice();
+
+        if (destinationDevice == null || !destinationDevice.getWriteLimit().isLimited())
+            return null;
+
+        return destinationDevice.getWriteLimit();
+    }
+
+    // Blocks until call limited by limit can start. Does nothing if limit is null.
+    private void awaitIo(IoLimit limit, Component transferredComponent) {
+        if (limit == null)
+            return;
+
+        Handoff wakeCallToIo = transferredComponent.getWakeCallToIo();
+        limit.acquire(wakeCallToIo);
+        ioWakeups.await(wakeCallToIo);
+        wakeCallToIo.reset();
+    }
+
+    // Runs action once call limited by limit can start, in the same task if it can start right away,
+    // or on executor otherwise.
+    private static void whenIoAllowed(IoLimit limit, Component transferredComponent, Executor executor,
+                                      Runnable action) {
+        if (limit != null) {
+            Handoff wakeCallToIo = transferredComponent.getWakeCallToIo();
+            limit.acquire(wakeCallToIo);
+
+            if (!wakeCallToIo.isSignalled()) {
+                wakeCallToIo.whenSignalled(executor, () -> {
+                    wakeCallToIo.reset();
+                    action.run();
+                });
+                return;
+            }
+
+            wakeCallToIo.reset();
         }
+
+        action.run();
     }
 
-    // acquireAccess is only required for accessors and getters.
-    // All other methods acquire access themselves.
-    private class Device {
-        private final DeviceId id;
-        private final int totalSpots;
-        private final Semaphore access = new Semaphore(1, true);
-        private int usedSpotsCnt;
-        // Chronological queue of components waiting for permission to move to this device.
-        private Queue<Component> prepareWaitLineIn = new LinkedList<Component>();
-        // Set of transferred components currently on this device that have permission to execute perform and no one reserved spot after them.
-        private Set<Component> performWaitSetOut = new HashSet<>();
+    // Validates transfer, marks its component as transferred and reserves spot for it.
+    // Returns transferred component, which will get wakeCallToPrepare when transfer can be prepared.
+    private Component admit(ComponentTransfer transfer) throws TransferException {
+        long start = System.nanoTime();
+        Device sourceDevice = getDevice(transfer.getSourceDeviceId());
+        Device destinationDevice = getDevice(transfer.getDestinationDeviceId());
+        Component transferredComponent;
 
-        public Device(DeviceId id, int totalSpots, int usedSpotsCnt) {
-            this.id = id;
-            this.totalSpots = totalSpots;
-            this.usedSpotsCnt = usedSpotsCnt;
+        try {
+            transferredComponent = claimComponent(transfer, sourceDevice, destinationDevice);
+        } catch (TransferException | IllegalArgumentException e) {
+            transfersRejected.increment();
+            throw e;
         }
 
-        public void acquireAccess() {
+        transferredComponent.setDestinationDevice(destinationDevice);
+        setUrgency(transferredComponent, transfer);
+        publish(TransferEvent.Type.ADMITTED, transferredComponent);
+
+        if (!reserveWithoutWaitGraph(transferredComponent) && !swapWithWaiting(transferredComponent)) {
+            WaitForGraph graph = waitForGraph.acquireAccess(transferredComponent);
+
             try {
-                access.acquire();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("panic: unexpected thread interruption");
+                reserveOrWait(graph, transferredComponent, false);
+
+                // New edge may make bundle with some deferred component possible.
+                if (graph.hasDeferred())
+                    retryDeferredLocked(graph);
+            } finally {
+                graph.releaseAccess();
             }
         }
 
-        public void releaseAccess() {
-            access.release();
-        }
+        transfersAdmitted.increment();
+        admissionTimes.record(System.nanoTime() - start);
+
+        return transferredComponent;
+    }
 
-        public DeviceId getId() {
-            return id;
+    // Plain transfers behave as ones with priority 0 and no deadline.
+    private static void setUrgency(Component transferredComponent, ComponentTransfer transfer) {
+        if (transfer instanceof PrioritizedComponentTransfer) {
+            PrioritizedComponentTransfer prioritized = (PrioritizedComponentTransfer) transfer;
+            transferredComponent.setUrgency(prioritized.getPriority(), prioritized.getDeadline());
+        } else {
+            transferredComponent.setUrgency(0, PrioritizedComponentTransfer.NO_DEADLINE);
         }
+    }
+
+    private Device getDevice(DeviceId deviceId) {
+        if (deviceId == null)
+            return null;
 
-        public int getTotalSpots() {
-            return totalSpots;
+        return devices.get(deviceId.intValue());
+    }
+
+    // Reserves spot for claimed component unless it would have to wait in prepareWaitLineIn of some device
+    // from which it could close a cycle. Returns false in that case.
+    private Boolean reserveWithoutWaitGraph(Component transferredComponent) {
+        Device sourceDevice = transferredComponent.getCurrentDevice();
+        Device destinationDevice = transferredComponent.getDestinationDevice();
+
+        // Handling operation of adding component.
+        if (sourceDevice == null) {
+            // Adding component is never part of a cycle, so it can wait without checking wait graph.
+            destinationDevice.reserveSpot(transferredComponent, false, handoffPolicy, events);
+            return true;
+        } else if (destinationDevice == null) {
+            // We can start removing immediately.
+            transferredComponent.getWakeCallToPrepare().signal();
+            transferredComponent.getWakeCallToPerform().signal();
+            return true;
         }
 
-        public int getUsedSpotsCnt() {
-            return usedSpotsCnt;
+        return destinationDevice.tryReserveSpot(transferredComponent, handoffPolicy);
+    }
+
+    // Pairs moved component that would have to wait with the longest waiting transfer going the opposite way,
+    // between the same two devices, and resolves both as a cycle of two, without wait-for graph. Edges can disappear
+    // from graph at any time, and the new one is never added. Returns false if there is no such transfer, or if
+    // the two do not fit. Devices are locked in DeviceId order.
+    private Boolean swapWithWaiting(Component transferredComponent) {
+        Device sourceDevice = transferredComponent.getCurrentDevice();
+        Device destinationDevice = transferredComponent.getDestinationDevice();
+
+        if (sourceDevice == null || destinationDevice == null || sourceDevice.getPrepareWaitLineInSize() == 0)
+            return false;
+
+        Device first = sourceDevice.getId().compareTo(destinationDevice.getId()) < 0 ? sourceDevice : destinationDevice;
+        Device second = first == sourceDevice ? destinationDevice : sourceDevice;
+        Component partner;
+
+        first.acquireAccess();
+        second.acquireAccess();
+
+        try {
+            partner = sourceDevice.peekWaitingFrom(destinationDevice);
+
+            if (partner == null
+                    || transferredComponent.getSize() > destinationDevice.getFreeSpace() + partner.getSize()
+                    || partner.getSize() > sourceDevice.getFreeSpace() + transferredComponent.getSize())
+                return false;
+
+            destinationDevice.takeInCycle(transferredComponent, List.of(partner));
+            sourceDevice.takeInCycle(partner, List.of(transferredComponent));
+
+            // Partner could have been keeping out others that fit.
+            sourceDevice.admitWaiting(handoffPolicy);
+        } finally {
+            second.releaseAccess();
+            first.releaseAccess();
         }
-        public void chgUsedSpotsCnt(int inc) {
-            usedSpotsCnt += inc;
+
+        resolveCycle(List.of(transferredComponent, partner));
+        return true;
+    }
+
+    // Has to be called with access to graph, returned by acquireAccess of wait graph.
+    // Reserves spot for moved component or adds it to prepareWaitLineIn, resolving cycle closed by it.
+    // Deferred component comes back to prepareWaitLineIn again, see Device.reserveSpot.
+    private void reserveOrWait(WaitForGraph graph, Component transferredComponent, Boolean again) {
+        Device sourceDevice = transferredComponent.getCurrentDevice();
+        Device destinationDevice = transferredComponent.getDestinationDevice();
+
+        graph.beforeWaiting(transferredComponent);
+
+        if (destinationDevice.reserveSpot(transferredComponent, again, handoffPolicy, events))
+            return;
+
+        // Try to find cycle of transfers.
+        List<Component> cycle = graph.closeCycle(transferredComponent, destinationDevice, sourceDevice,
+                handoffPolicy);
+
+        if (cycle != null)
+            resolveCycle(cycle);
+    }
+
+    private void publish(TransferEvent.Type type, Component transferredComponent) {
+        events.publish(type, transferredComponent.getId(), transferredComponent.getCurrentDevice(),
+                transferredComponent.getDestinationDevice());
+    }
+
+    // Components of cycle (or bundle) already have space reserved, so all of them can be prepared right away.
+    private void resolveCycle(List<Component> cycle) {
+        cyclesResolved.increment();
+        cycleComponents.add(cycle.size());
+
+        for (Component entry : cycle) {
+            publish(TransferEvent.Type.CYCLE_RESOLVED, entry);
+            entry.getWakeCallToPrepare().signal();
         }
+    }
 
-        public Queue<Component> getPrepareWaitLineIn() {
-            return prepareWaitLineIn;
+    // Finds cycles of moves inside the batch, and resolves them as if they were found in wait graph.
+    // Returns components from batch that are not part of any such cycle.
+    private List<Component> resolveBatchCycles(List<Component> batchComponents) {
+        // Moves from batch that are not yet part of any cycle, by their source device.
+        Map<Device, Deque<Component>> movesFrom = new HashMap<>();
+        List<Component> rest = new ArrayList<>();
+
+        for (Component transferredComponent : batchComponents) {
+            Device sourceDevice = transferredComponent.getCurrentDevice();
+
+            if (sourceDevice == null || transferredComponent.getDestinationDevice() == null)
+                rest.add(transferredComponent);
+            else
+                movesFrom.computeIfAbsent(sourceDevice, d -> new ArrayDeque<>()).add(transferredComponent);
         }
 
-        public Set<Component> getPerformWaitSetOut() {
-            return performWaitSetOut;
+        // Walks along unused moves. Whenever walk comes back to device already on it, its last part is a cycle.
+        // Walk goes back a move whenever it reaches device without any, since only that move cannot be part
+        // of any cycle, see TransferPlan.findCycles.
+        Map<Device, Integer> onPath = new HashMap<>();
+        List<Component> path = new ArrayList<>();
+
+        for (Device start : movesFrom.keySet()) {
+            Device v = start;
+
+            while (true) {
+                Deque<Component> out = movesFrom.get(v);
+
+                if (out == null || out.isEmpty()) {
+                    if (path.isEmpty())
+                        break;
+
+                    Component deadEnd = path.remove(path.size() - 1);
+                    rest.add(deadEnd);
+                    v = deadEnd.getCurrentDevice();
+                    onPath.remove(v);
+                    continue;
+                }
+
+                onPath.put(v, path.size());
+                Component move = out.poll();
+                path.add(move);
+                v = move.getDestinationDevice();
+
+                Integer cycleStart = onPath.get(v);
+                if (cycleStart != null) {
+                    List<Component> cycle = path.subList(cycleStart, path.size());
+
+                    for (Component entry : cycle)
+                        onPath.remove(entry.getCurrentDevice());
+
+                    // Walk goes along moves, so each of them takes space of the one after it.
+                    List<Component> reversed = new ArrayList<>(cycle);
+                    Collections.reverse(reversed);
+
+                    if (takeBatchCycle(reversed))
+                        resolveCycle(reversed);
+                    else
+                        rest.addAll(reversed);
+
+                    cycle.clear();
+                }
+            }
         }
 
-        // Returns true if spot was reserved, otherwise adds component to prepareWaitLineIn and returns false.
-        public Boolean reserveSpot(Component transferredComponent) {
-            this.acquireAccess();
+        return rest;
+    }
 
-            try {
-                if (this.getUsedSpotsCnt() < this.getTotalSpots()) {
-                    this.chgUsedSpotsCnt(1);
+    // Reserves space for every component of cycle formed by a batch, ordered as for resolveCycle,
+    // if there is enough of it on every device. Devices are locked in DeviceId order.
+    private Boolean takeBatchCycle(List<Component> cycle) {
+        List<Device> lockOrder = new ArrayList<>(cycle.size());
 
-                    // There is space on the device, so we can prepare and perform immediately.
-                    transferredComponent.getWakeCallToPrepare().release();
-                    transferredComponent.getWakeCallToPerform().release();
+        for (Component entry : cycle)
+            lockOrder.add(entry.getDestinationDevice());
 
-                    return true;
-                } else if (!this.getPerformWaitSetOut().isEmpty()) {
-                    // There is spot we can reserve, so we can prepare immediately.
-                    transferredComponent.getWakeCallToPrepare().release();
+        lockOrder.sort(Comparator.comparing(Device::getId));
 
-                    Iterator<Component> iter = this.getPerformWaitSetOut().iterator();
-                    iter.next().setNextToPerform(transferredComponent);
-                    iter.remove();
+        for (Device d : lockOrder)
+            d.acquireAccess();
 
-                    return true;
-                } else {
-                    this.getPrepareWaitLineIn().add(transferredComponent);
+        try {
+            Component last = cycle.get(cycle.size() - 1);
 
+            for (Component entry : cycle) {
+                if (entry.getSize() > entry.getDestinationDevice().getFreeSpace() + last.getSize())
                     return false;
-                }
-            } finally {
-                this.releaseAccess();
+                last = entry;
             }
+
+            // Nobody left prepareWaitLineIn, so there is no need to admit waiting components.
+            for (Component entry : cycle) {
+                entry.getDestinationDevice().takeInCycle(entry, List.of(last));
+                last = entry;
+            }
+
+            return true;
+        } finally {
+            for (Device d : lockOrder)
+                d.releaseAccess();
         }
+    }
 
-        // Defines edges from device v_1, as pairs (v_1, v_2) where v_2 is c.currentDevice() for some c in v_1.getPrepareWaitLineIn().
-        // Returns true if path was found from v to any device from seen or v.
-        // Sets currentPath to founded path or cycle.
-        // Removes components from path from their prepareWaitLine.
-        public static Boolean findCycle(Device v, Set<DeviceId> seen, LinkedList<Component> currentPath) {
-            v.acquireAccess();
+    // Gives deferred components whose cycle went through device another chance, after space was handed out on it.
+    // Others still lack the same space as before, so they are left alone.
+    private void retryDeferred(Device device) {
+        if (!WaitForGraph.hasDeferred(device))
+            return;
 
-            try {
-                seen.add(v.getId());
-                Iterator<Component> iter = v.getPrepareWaitLineIn().iterator();
+        waitForGraph.acquireAccess();
 
-                while (iter.hasNext()) {
-                    Component x = iter.next();
-                    Device xd = x.getCurrentDevice();
+        try {
+            for (Component transferredComponent : waitForGraph.getDeferred()) {
+                List<Device> deferredOn = transferredComponent.getDeferredOn();
 
-                    if (xd == null)
-                        continue;
+                if (deferredOn != null && deferredOn.contains(device) && waitForGraph.undefer(transferredComponent))
+                    reserveOrWait(waitForGraph, transferredComponent, true);
+            }
+        } finally {
+            waitForGraph.releaseAccess();
+        }
+    }
 
-                    currentPath.addLast(x);
-                    if (seen.contains(xd.getId())) {
-                        // We can assume that currentPath is a cycle since we are calling this function at the beginning of every transfer.
-                        iter.remove();
-                        return true;
-                    }
+    // Has to be called with access to graph. Component resolved in a bundle of one retried earlier is skipped.
+    private void retryDeferredLocked(WaitForGraph graph) {
+        for (Component transferredComponent : graph.getDeferred()) {
+            if (graph.undefer(transferredComponent))
+                reserveOrWait(graph, transferredComponent, true);
+        }
+    }
 
-                    if (findCycle(xd, seen, currentPath)) {
-                        iter.remove();
-                        return true;
-                    }
+    // Takes transfer that still waits for space out of prepareWaitLineIn of its destination, or out of deferred
+    // components of wait graph, and releases its claim. Space is never taken back, so transfer that already got it
+    // (alone, after components leaving destination, or in a cycle) is left alone, and false is returned.
+    // Has to be called at most once per transfer, and only until it starts prepare.
+    private Boolean withdraw(Component transferredComponent) {
+        Device destinationDevice = transferredComponent.getDestinationDevice();
 
-                    currentPath.pollLast();
-                }
-                seen.remove(v.getId());
+        // Removing never waits.
+        if (destinationDevice == null || transferredComponent.getWakeCallToPrepare().isSignalled())
+            return false;
 
-                return false;
+        Boolean withdrawn = destinationDevice.withdrawFromPrepareWaitLineIn(transferredComponent, handoffPolicy);
+
+        // Deferred component goes back to prepareWaitLineIn, or leaves it to be deferred, only with access to graph.
+        // When it is deferred, deferred count was changed with lock of destination held, so it is seen here.
+        if (!withdrawn && transferredComponent.getCurrentDevice() != null && waitForGraph.hasDeferred()) {
+            waitForGraph.acquireAccess();
+
+            try {
+                withdrawn = waitForGraph.undefer(transferredComponent)
+                        || destinationDevice.withdrawFromPrepareWaitLineIn(transferredComponent, handoffPolicy);
             } finally {
-                v.releaseAccess();
+                waitForGraph.releaseAccess();
             }
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (! (obj instanceof Device)) {
-                return false;
+        if (!withdrawn)
+            return false;
+
+        waitForGraph.afterWaiting(transferredComponent);
+        publish(TransferEvent.Type.CANCELLED, transferredComponent);
+        transferredComponent.withdrawTransfer();
+        releaseClaim(transferredComponent);
+
+        return true;
+    }
+
+    // Undoes claimComponent of transfer that will not be executed.
+    private void releaseClaim(Component transferredComponent) {
+        transferredComponent.finishClaim();
+        transferred.remove(transferredComponent.getId().intValue(), transferredComponent);
+    }
+
+    // Called when transfer got permission to prepare, right before its prepare.
+    private void beginPrepare(Component transferredComponent) {
+        Device sourceDevice = transferredComponent.getCurrentDevice();
+
+        if (sourceDevice == null)
+            return;
+
+        transferredComponent.setPrepareStartedAt(System.nanoTime());
+        waitForGraph.afterWaiting(transferredComponent);
+
+        // Transfers let in here are woken up by device. Those that reserved space in resolveCycle
+        // were already woken up there, and signalling them again could reach their next transfer,
+        // if they are quick enough to finish this one in the meantime.
+        sourceDevice.offerSpaceOut(transferredComponent, handoffPolicy);
+        retryDeferred(sourceDevice);
+    }
+
+    // Called right after prepare of transfer.
+    private void endPrepare(Component transferredComponent) {
+        Device sourceDevice = transferredComponent.getCurrentDevice();
+
+        if (sourceDevice == null)
+            return;
+
+        long prepareDuration = transferredComponent.recordPrepareEnd(System.nanoTime());
+
+        // Waking up transfers that reserved space after component moved in this transfer and freeing the rest.
+        sourceDevice.releaseSpaceOut(transferredComponent, prepareDuration, handoffPolicy);
+        retryDeferred(sourceDevice);
+    }
+
+    // Called right after perform of transfer.
+    // With placement log, returns only after transfer is durable.
+    private void finishTransfer(Component transferredComponent) {
+        Device sourceDevice = transferredComponent.getCurrentDevice();
+        Device destinationDevice = transferredComponent.getDestinationDevice();
+        long logRecord = 0;
+
+        transferredComponent.recordPerformEnd(System.nanoTime());
+        placementChangesStarted.increment();
+
+        int componentId = transferredComponent.getId().intValue();
+        long size = transferredComponent.getSize();
+
+        // Index of destination gets component first, so that listing may show it twice, but never lose it.
+        if (destinationDevice == null) {
+            placementTable.remove(componentId);
+        } else {
+            placementTable.put(componentId, destinationDevice.getIndex(), size,
+                    transferredComponent.getExpectedPrepareNanos(), transferredComponent.getExpectedPerformNanos());
+            destinationDevice.addPlaced(componentId, size);
+        }
+
+        transferredComponent.finishTransfer(destinationDevice);
+
+        if (sourceDevice != null)
+            sourceDevice.removePlaced(componentId);
+        placementChangesEnded.increment();
+
+        // Logged after placement is changed, so that snapshot started after this record's segment sees the change,
+        // and before claim is finished, so that records of one component are logged in order of its transfers.
+        if (placementLog != null) {
+            if (destinationDevice == null)
+                logRecord = placementLog.append(componentId, 0, size, true);
+            else
+                logRecord = placementLog.append(componentId, destinationDevice.getId().intValue(), size, false);
+        }
+
+        // Published before claim is finished, so that next transfer of component is published after it.
+        events.publish(TransferEvent.Type.FINISHED, transferredComponent.getId(), sourceDevice, destinationDevice);
+        transferred.remove(componentId, transferredComponent);
+
+        if (sourceDevice != null)
+            sourceDevice.countTransferOut();
+        if (destinationDevice != null)
+            destinationDevice.countTransferIn();
+        transfersFinished.increment();
+
+        if (placementLog != null)
+            placementLog.awaitDurable(logRecord);
+    }
+
+    // Writes snapshot of current placement for log segment that has just started.
+    // Snapshot is fuzzy, transfers finishing in the meantime are logged in this segment anyway.
+    // If it fails, older snapshot and segments stay in place, so system can still be recovered.
+    private void writeSnapshot(long segment) {
+        int[] deviceIds = new int[devices.size()];
+        long[] deviceCapacities = new long[deviceIds.length];
+        int[] cnt = {0};
+
+        devices.forEach((id, d) -> {
+            deviceIds[cnt[0]] = id;
+            deviceCapacities[cnt[0]] = d.getCapacity();
+            cnt[0]++;
+        });
+
+        int[][] placement = {new int[placementTable.size() + 16], new int[placementTable.size() + 16]};
+        long[][] sizes = {new long[placement[0].length]};
+        cnt[0] = 0;
+
+        placementTable.forEach((id, deviceIndex, size) -> {
+            if (cnt[0] == placement[0].length) {
+                placement[0] = Arrays.copyOf(placement[0], cnt[0] * 2);
+                placement[1] = Arrays.copyOf(placement[1], cnt[0] * 2);
+                sizes[0] = Arrays.copyOf(sizes[0], cnt[0] * 2);
             }
-            return this.id.equals(((Device)obj).id);
+
+            placement[0][cnt[0]] = id;
+            placement[1][cnt[0]] = devicesByIndex[deviceIndex].getId().intValue();
+            sizes[0][cnt[0]] = size;
+            cnt[0]++;
+        });
+
+        try {
+            new PlacementSnapshot(segment, deviceIds, deviceCapacities, Arrays.copyOf(placement[0], cnt[0]),
+                    Arrays.copyOf(placement[1], cnt[0]), Arrays.copyOf(sizes[0], cnt[0])).write(logDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        @Override
-        public int hashCode() {
-            return this.id.hashCode();
+    // Validates transfer and creates state of its component in transferred map.
+    // Checks are done in the same order as they would be done under one global lock, and claim is a single
+    // putIfAbsent, so two transfers of the same component can never both pass. Placement of claimed component
+    // cannot change, so it is read again after claim, and checks are repeated if it changed before.
+    private Component claimComponent(ComponentTransfer transfer, Device sourceDevice, Device destinationDevice)
+            throws TransferException {
+        DeviceId sourceDeviceId = transfer.getSourceDeviceId();
+        DeviceId destinationDeviceId = transfer.getDestinationDeviceId();
+        ComponentId transferredComponentId = transfer.getComponentId();
+        int id = transferredComponentId.intValue();
+
+        while (true) {
+            // Check for ComponentIsBeingOperatedOn
+            if (transferred.get(id) != null)
+                throw new ComponentIsBeingOperatedOn(transferredComponentId);
+
+            int deviceIndex = placementTable.getDevice(id);
+            long placedSize = placementTable.getSize(id);
+            Device currentDevice = deviceIndex == PlacementTable.ABSENT ? null : devicesByIndex[deviceIndex];
+
+            // Check for IllegalTransferType.
+            if (sourceDeviceId == null && destinationDeviceId == null)
+                throw new IllegalTransferType(transferredComponentId);
+
+            // Check for DeviceDoesNotExists.
+            if (sourceDeviceId != null && sourceDevice == null)
+                throw new DeviceDoesNotExist(sourceDeviceId);
+
+            if (destinationDeviceId != null && destinationDevice == null)
+                throw new DeviceDoesNotExist(destinationDeviceId);
+
+            // Check for ComponentAlreadyExists, assuming component exists on source device until end of transfer prepare.
+            if (sourceDeviceId == null && currentDevice != null)
+                throw new ComponentAlreadyExists(transferredComponentId, currentDevice.getId());
+
+            // Check for ComponentDoesNotExist.
+            DeviceId currentDeviceId = currentDevice == null ? null : currentDevice.getId();
+
+            if (sourceDeviceId != null && !sourceDeviceId.equals(currentDeviceId))
+                throw new ComponentDoesNotExist(transferredComponentId, sourceDeviceId);
+
+            // Check for ComponentDoesNotNeedTransfer.
+            if (destinationDeviceId != null && destinationDeviceId.equals(currentDeviceId))
+                throw new ComponentDoesNotNeedTransfer(transferredComponentId, destinationDeviceId);
+
+            // Check for ComponentDoesNotFit, component that could never get space would wait forever.
+            long size = currentDevice == null ? addedSize(transfer) : placedSize;
+
+            if (destinationDevice != null && size > destinationDevice.getCapacity())
+                throw new ComponentDoesNotFit(transferredComponentId, size, destinationDeviceId,
+                        destinationDevice.getCapacity());
+
+            Component transferredComponent = new Component(transferredComponentId, currentDevice, size);
+
+            if (transferred.putIfAbsent(id, transferredComponent) != null)
+                continue;
+
+            // Component could have finished other transfer between checks and claim, so checks are repeated.
+            if (placementTable.getDevice(id) == deviceIndex
+                    && (currentDevice == null || placementTable.getSize(id) == size)) {
+                if (currentDevice != null)
+                    transferredComponent.setHistory(placementTable.getExpectedPrepareNanos(id),
+                            placementTable.getExpectedPerformNanos(id));
+
+                return transferredComponent;
+            }
+
+            transferred.remove(id, transferredComponent);
         }
     }
-}
\ No newline at end of file
+
+    private static long addedSize(ComponentTransfer transfer) {
+        if (!(transfer instanceof SizedComponentTransfer))
+            return 1;
+
+        long size = ((SizedComponentTransfer) transfer).getComponentSize();
+
+        if (size <= 0)
+            throw new IllegalArgumentException("Component " + transfer.getComponentId() + " with size " + size
+                    + " is not allowed.");
+
+        return size;
+    }
+}
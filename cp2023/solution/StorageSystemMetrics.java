@@ -0,0 +1,134 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+import java.util.Collections;
+import java.util.Map;
+
+// Snapshot of counters of StorageSystemImpl. Every counter is read without locks, on its own,
+// so values taken during heavy traffic do not have to be consistent with each other.
+public final class StorageSystemMetrics {
+    private final long transfersAdmitted;
+    private final long transfersRejected;
+    private final long transfersFinished;
+    private final long cyclesResolved;
+    private final long cycleComponents;
+    private final LatencyHistogram.Snapshot admissionTimes;
+    private final Map<DeviceId, DeviceMetrics> devices;
+
+    StorageSystemMetrics(long transfersAdmitted, long transfersRejected, long transfersFinished,
+                         long cyclesResolved, long cycleComponents, LatencyHistogram.Snapshot admissionTimes,
+                         Map<DeviceId, DeviceMetrics> devices) {
+        this.transfersAdmitted = transfersAdmitted;
+        this.transfersRejected = transfersRejected;
+        this.transfersFinished = transfersFinished;
+        this.cyclesResolved = cyclesResolved;
+        this.cycleComponents = cycleComponents;
+        this.admissionTimes = admissionTimes;
+        this.devices = Collections.unmodifiableMap(devices);
+    }
+
+    public long getTransfersAdmitted() {
+        return transfersAdmitted;
+    }
+
+    // Transfers that failed with TransferException.
+    public long getTransfersRejected() {
+        return transfersRejected;
+    }
+
+    public long getTransfersFinished() {
+        return transfersFinished;
+    }
+
+    public long getCyclesResolved() {
+        return cyclesResolved;
+    }
+
+    public double getAverageCycleLength() {
+        return cyclesResolved == 0 ? 0 : (double) cycleComponents / cyclesResolved;
+    }
+
+    // Time from start of execute until transfer got spot or started waiting for one
+    // (whole batch counts as one sample in executeAllAsync).
+    public LatencyHistogram.Snapshot getAdmissionTimes() {
+        return admissionTimes;
+    }
+
+    public Map<DeviceId, DeviceMetrics> getDevices() {
+        return devices;
+    }
+
+    public static final class DeviceMetrics {
+        private final DeviceId id;
+        private final long capacity;
+        private final long usedSpace;
+        private final int prepareWaitLineInSize;
+        private final int performWaitSetOutSize;
+        private final long transfersIn;
+        private final long transfersOut;
+        private final LatencyHistogram.Snapshot waitTimes;
+
+        DeviceMetrics(DeviceId id, long capacity, long usedSpace, int prepareWaitLineInSize,
+                      int performWaitSetOutSize, long transfersIn, long transfersOut,
+                      LatencyHistogram.Snapshot waitTimes) {
+            this.id = id;
+            this.capacity = capacity;
+            this.usedSpace = usedSpace;
+            this.prepareWaitLineInSize = prepareWaitLineInSize;
+            this.performWaitSetOutSize = performWaitSetOutSize;
+            this.transfersIn = transfersIn;
+            this.transfersOut = transfersOut;
+            this.waitTimes = waitTimes;
+        }
+
+        public DeviceId getId() {
+            return id;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        // Space taken by components placed on device or reserved by transfers moving to it.
+        public long getUsedSpace() {
+            return usedSpace;
+        }
+
+        public double getUtilization() {
+            return (double) usedSpace / capacity;
+        }
+
+        // Transfers waiting for space on this device.
+        public int getPrepareWaitLineInSize() {
+            return prepareWaitLineInSize;
+        }
+
+        // Transfers leaving this device that are prepared and part of their space is not reserved yet.
+        public int getPerformWaitSetOutSize() {
+            return performWaitSetOutSize;
+        }
+
+        // Finished transfers that added or moved component to this device.
+        public long getTransfersIn() {
+            return transfersIn;
+        }
+
+        // Finished transfers that removed or moved component from this device.
+        public long getTransfersOut() {
+            return transfersOut;
+        }
+
+        // Time spent by transfers in prepareWaitLineIn of this device.
+        public LatencyHistogram.Snapshot getWaitTimes() {
+            return waitTimes;
+        }
+
+        @Override
+        public String toString() {
+            return "Device " + id + ": space " + usedSpace + "/" + capacity
+                    + ", waiting in " + prepareWaitLineInSize + ", prepared out " + performWaitSetOutSize
+                    + ", transfers in " + transfersIn + " out " + transfersOut + ", wait " + waitTimes;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package cp2023.solution;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+// Every getter takes fresh snapshot, JMX clients poll rarely enough for that.
+final class StorageSystemMetricsBean implements StorageSystemMetricsMXBean {
+    private final StorageSystemImpl system;
+
+    public StorageSystemMetricsBean(StorageSystemImpl system) {
+        this.system = system;
+    }
+
+    @Override
+    public long getTransfersAdmitted() {
+        return system.getMetrics().getTransfersAdmitted();
+    }
+
+    @Override
+    public long getTransfersRejected() {
+        return system.getMetrics().getTransfersRejected();
+    }
+
+    @Override
+    public long getTransfersFinished() {
+        return system.getMetrics().getTransfersFinished();
+    }
+
+    @Override
+    public long getCyclesResolved() {
+        return system.getMetrics().getCyclesResolved();
+    }
+
+    @Override
+    public double getAverageCycleLength() {
+        return system.getMetrics().getAverageCycleLength();
+    }
+
+    @Override
+    public double getAdmissionMeanNanos() {
+        return system.getMetrics().getAdmissionTimes().getMeanNanos();
+    }
+
+    @Override
+    public long getAdmissionP99Nanos() {
+        return system.getMetrics().getAdmissionTimes().getPercentileNanos(0.99);
+    }
+
+    @Override
+    public Map<String, Double> getDeviceUtilization() {
+        return perDevice(StorageSystemMetrics.DeviceMetrics::getUtilization);
+    }
+
+    @Override
+    public Map<String, Integer> getDevicePrepareWaitLineInSize() {
+        return perDevice(StorageSystemMetrics.DeviceMetrics::getPrepareWaitLineInSize);
+    }
+
+    @Override
+    public Map<String, Integer> getDevicePerformWaitSetOutSize() {
+        return perDevice(StorageSystemMetrics.DeviceMetrics::getPerformWaitSetOutSize);
+    }
+
+    @Override
+    public Map<String, Long> getDeviceWaitP99Nanos() {
+        return perDevice(d -> d.getWaitTimes().getPercentileNanos(0.99));
+    }
+
+    private <T> Map<String, T> perDevice(Function<StorageSystemMetrics.DeviceMetrics, T> value) {
+        Map<String, T> result = new TreeMap<>();
+
+        for (StorageSystemMetrics.DeviceMetrics d : system.getMetrics().getDevices().values())
+            result.put(d.getId().toString(), value.apply(d));
+
+        return result;
+    }
+}
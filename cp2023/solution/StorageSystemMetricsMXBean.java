@@ -0,0 +1,29 @@
+package cp2023.solution;
+
+import java.util.Map;
+
+// JMX view of StorageSystemMetrics. Obtain it with StorageSystemImpl.getMetricsMXBean()
+// and register it in MBeanServer under any name. Maps are keyed by DeviceId.toString().
+public interface StorageSystemMetricsMXBean {
+    long getTransfersAdmitted();
+
+    long getTransfersRejected();
+
+    long getTransfersFinished();
+
+    long getCyclesResolved();
+
+    double getAverageCycleLength();
+
+    double getAdmissionMeanNanos();
+
+    long getAdmissionP99Nanos();
+
+    Map<String, Double> getDeviceUtilization();
+
+    Map<String, Integer> getDevicePrepareWaitLineInSize();
+
+    Map<String, Integer> getDevicePerformWaitSetOutSize();
+
+    Map<String, Long> getDeviceWaitP99Nanos();
+}
@@ -0,0 +1,76 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+// Step of a transfer, as published by StorageSystemImpl to subscribers of its events.
+// Source is null for adding and destination is null for removing, as in ComponentTransfer.
+public final class TransferEvent {
+
+    public enum Type {
+        // Transfer was validated and its component claimed.
+        ADMITTED,
+        // Transfer started waiting in prepareWaitLineIn of its destination.
+        QUEUED,
+        // Transfer got its space as part of a resolved cycle (or bundle).
+        CYCLE_RESOLVED,
+        PREPARE_STARTED,
+        PREPARE_FINISHED,
+        PERFORM_STARTED,
+        PERFORM_FINISHED,
+        // Component is placed on destination (or removed), and can be transferred again.
+        FINISHED,
+        // Transfer timed out or was cancelled before it got space, and its component can be transferred again.
+        CANCELLED
+    }
+
+    private final long sequence;
+    private final long nanoTime;
+    private final Type type;
+    private final ComponentId componentId;
+    private final DeviceId sourceDeviceId;
+    private final DeviceId destinationDeviceId;
+
+    TransferEvent(long sequence, long nanoTime, Type type, ComponentId componentId,
+                  DeviceId sourceDeviceId, DeviceId destinationDeviceId) {
+        this.sequence = sequence;
+        this.nanoTime = nanoTime;
+        this.type = type;
+        this.componentId = componentId;
+        this.sourceDeviceId = sourceDeviceId;
+        this.destinationDeviceId = destinationDeviceId;
+    }
+
+    // Events of one system are numbered from 0 in order in which they were published.
+    // Events of one transfer are always published in order of their steps.
+    public long getSequence() {
+        return sequence;
+    }
+
+    // System.nanoTime() at publication.
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public ComponentId getComponentId() {
+        return componentId;
+    }
+
+    public DeviceId getSourceDeviceId() {
+        return sourceDeviceId;
+    }
+
+    public DeviceId getDestinationDeviceId() {
+        return destinationDeviceId;
+    }
+
+    @Override
+    public String toString() {
+        return "Event " + sequence + ": " + type + " of " + componentId + " from " + sourceDeviceId
+                + " to " + destinationDeviceId;
+    }
+}
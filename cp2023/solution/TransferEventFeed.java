@@ -0,0 +1,101 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Bounded ring of transfer events shared by all subscribers, each reading it with its own cursor.
+// Publishing never waits: it takes next sequence number and puts event in its slot with a CAS,
+// overwriting event published capacity numbers earlier, whether subscribers have read it or not.
+// Slower of two publishers whose events meet in the same slot drops its own, so slot never goes back.
+// Without subscribers nothing is published at all.
+// Events are delivered by threads of the feed, not by executor running transfers, so that slow subscriber
+// cannot hold back transfers. Events are often published with locks held, to keep their order, but subscribers
+// are woken only once publisher released them (see Handoff.afterLocks), since that may submit delivery task. Each subscription runs at most one task at a time, so there are never more
+// threads than subscriptions, and threads that stay idle for DELIVERY_KEEP_ALIVE_SECONDS end.
+final class TransferEventFeed {
+    private static final long DELIVERY_KEEP_ALIVE_SECONDS = 1;
+
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(TransferEvent[].class);
+
+    private final TransferEvent[] slots;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong(0);
+    private final Executor deliveryExecutor;
+    private final CopyOnWriteArrayList<TransferEventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Runnable wakeUp = this::wakeSubscriptions;
+
+    // Capacity has to be a power of two.
+    public TransferEventFeed(int capacity) {
+        slots = new TransferEvent[capacity];
+        mask = capacity - 1;
+        deliveryExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, DELIVERY_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "transfer-events");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    public void publish(TransferEvent.Type type, ComponentId componentId, Device source, Device destination) {
+        if (subscriptions.isEmpty())
+            return;
+
+        long sequence = nextSequence.getAndIncrement();
+        TransferEvent event = new TransferEvent(sequence, System.nanoTime(), type, componentId,
+                source == null ? null : source.getId(), destination == null ? null : destination.getId());
+        int i = (int) sequence & mask;
+        TransferEvent current;
+
+        do {
+            current = (TransferEvent) SLOT.getAcquire(slots, i);
+
+            if (current != null && current.getSequence() > sequence)
+                break;
+        } while (!SLOT.compareAndSet(slots, i, current, event));
+
+        Handoff.afterLocks(wakeUp);
+    }
+
+    private void wakeSubscriptions() {
+        for (TransferEventSubscription subscription : subscriptions)
+            subscription.wake();
+    }
+
+    // Events are delivered on executor, or on threads of the feed if it is null.
+    public TransferEventSubscription subscribe(Consumer<List<TransferEvent>> consumer, int maxBatch,
+                                               Executor executor) {
+        TransferEventSubscription subscription = new TransferEventSubscription(this, consumer, maxBatch,
+                nextSequence.get(), executor == null ? deliveryExecutor : executor);
+        subscriptions.add(subscription);
+
+        return subscription;
+    }
+
+    public void unsubscribe(TransferEventSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public long getNextSequence() {
+        return nextSequence.get();
+    }
+
+    // Event currently in slot of given sequence number: that one, older one if it is not published yet,
+    // newer one if it was overwritten, or null.
+    public TransferEvent get(long sequence) {
+        return (TransferEvent) SLOT.getAcquire(slots, (int) sequence & mask);
+    }
+}
@@ -0,0 +1,123 @@
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Subscriber of transfer events of StorageSystemImpl. Events are delivered in order of their sequence numbers,
+// in batches, by one executor task at a time, which is submitted by publisher only when there is none.
+// Each task delivers one batch and submits the next one if more events are ready, so one busy subscription
+// does not hold executor thread for long. Subscriber that falls behind by more than capacity of the feed
+// skips events that were overwritten, and counts them as lost.
+public final class TransferEventSubscription {
+    private final TransferEventFeed feed;
+    private final Consumer<List<TransferEvent>> consumer;
+    private final int maxBatch;
+    private final Executor executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // Changed only by task that holds scheduled.
+    private long cursor;
+    private volatile long lostEvents = 0;
+    private volatile Boolean closed = false;
+    private volatile Throwable failure = null;
+
+    TransferEventSubscription(TransferEventFeed feed, Consumer<List<TransferEvent>> consumer, int maxBatch,
+                              long cursor, Executor executor) {
+        this.feed = feed;
+        this.consumer = consumer;
+        this.maxBatch = maxBatch;
+        this.cursor = cursor;
+        this.executor = executor;
+    }
+
+    // Events that were overwritten before this subscriber read them.
+    public long getLostEvents() {
+        return lostEvents;
+    }
+
+    // Exception thrown by consumer, which closed this subscription, or null.
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public Boolean isClosed() {
+        return closed;
+    }
+
+    // Events published afterwards are not delivered. Batch being delivered right now still is.
+    public void close() {
+        closed = true;
+        feed.unsubscribe(this);
+    }
+
+    void wake() {
+        if (scheduled.get() || !scheduled.compareAndSet(false, true))
+            return;
+
+        submit();
+    }
+
+    private void submit() {
+        try {
+            executor.execute(this::deliver);
+        } catch (RejectedExecutionException e) {
+            // Executor is shut down, events stay in the feed until next publication.
+            scheduled.set(false);
+        }
+    }
+
+    private void deliver() {
+        List<TransferEvent> batch = poll();
+
+        if (!batch.isEmpty() && !closed) {
+            try {
+                consumer.accept(batch);
+            } catch (Throwable e) {
+                failure = e;
+                close();
+            }
+        }
+
+        if (!closed && isReady()) {
+            submit();
+            return;
+        }
+
+        scheduled.set(false);
+
+        // Event published after isReady, but before scheduled was cleared, did not submit anything.
+        if (!closed && isReady() && scheduled.compareAndSet(false, true))
+            submit();
+    }
+
+    private List<TransferEvent> poll() {
+        List<TransferEvent> batch = new ArrayList<>();
+
+        while (batch.size() < maxBatch) {
+            TransferEvent event = feed.get(cursor);
+
+            if (event == null || event.getSequence() < cursor)
+                break;
+
+            if (event.getSequence() > cursor) {
+                long oldest = Math.max(cursor + 1, feed.getNextSequence() - feed.getCapacity());
+                lostEvents += oldest - cursor;
+                cursor = oldest;
+                continue;
+            }
+
+            batch.add(event);
+            cursor++;
+        }
+
+        return batch;
+    }
+
+    private Boolean isReady() {
+        TransferEvent event = feed.get(cursor);
+        return event != null && event.getSequence() >= cursor;
+    }
+}
@@ -0,0 +1,280 @@
+package cp2023.solution;
+
+import cp2023.base.AsyncStorageSystem;
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+// Moves that take components from their current placement to target one, split into waves.
+// Every wave is admitted at once with executeAllAsync, and the next one starts after it finishes.
+// Moves of a wave either form cycles that batch admission resolves right away (listed one after another),
+// or fit in space that is free when the wave starts, so no move of a plan waits in any prepareWaitLineIn
+// and none of them touches wait-for graph. Each move is put in the earliest wave it can take, so there are
+// as many waves as moves in the longest chain of moves making space for each other. Only cycles borrow space
+// after components leaving their devices, and they take free space only for what that does not cover.
+// With components of different sizes, moves may be left that neither fit nor form a cycle that fits.
+// Then all of them are put in the last wave, and resolved at run time as bundles.
+public final class TransferPlan {
+
+    public static final class Move {
+        private final ComponentId componentId;
+        private final DeviceId sourceDeviceId;
+        private final DeviceId destinationDeviceId;
+        private final long size;
+
+        Move(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId, long size) {
+            this.componentId = componentId;
+            this.sourceDeviceId = sourceDeviceId;
+            this.destinationDeviceId = destinationDeviceId;
+            this.size = size;
+        }
+
+        public ComponentId getComponentId() {
+            return componentId;
+        }
+
+        public DeviceId getSourceDeviceId() {
+            return sourceDeviceId;
+        }
+
+        public DeviceId getDestinationDeviceId() {
+            return destinationDeviceId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return "Move " + componentId + " from " + sourceDeviceId + " to " + destinationDeviceId;
+        }
+    }
+
+    private final List<List<Move>> waves;
+    private final long borrowedSpace;
+
+    private TransferPlan(List<List<Move>> waves, long borrowedSpace) {
+        this.waves = Collections.unmodifiableList(waves);
+        this.borrowedSpace = borrowedSpace;
+    }
+
+    // Plan for components placed as in placement, with given sizes (1 if missing), on devices with given capacities.
+    // Components missing in target stay where they are.
+    public static TransferPlan of(Map<ComponentId, DeviceId> placement, Map<ComponentId, Long> sizes,
+                                  Map<DeviceId, Long> capacities, Map<ComponentId, DeviceId> target) {
+        if (placement == null || sizes == null || capacities == null || target == null)
+            throw new IllegalArgumentException("Attempt at planning transfers with null argument.");
+
+        // Free space at start of next wave.
+        Map<DeviceId, Long> free = new HashMap<>(capacities);
+
+        for (var entry : placement.entrySet()) {
+            if (!free.containsKey(entry.getValue()))
+                throw new IllegalArgumentException("Component " + entry.getKey() + " is placed on device "
+                        + entry.getValue() + " which does not exist.");
+
+            free.merge(entry.getValue(), -sizes.getOrDefault(entry.getKey(), 1L), Long::sum);
+        }
+
+        List<Move> pending = new ArrayList<>();
+        Map<DeviceId, Long> finalFree = new HashMap<>(free);
+
+        for (var entry : target.entrySet()) {
+            ComponentId componentId = entry.getKey();
+            DeviceId source = placement.get(componentId);
+            DeviceId destination = entry.getValue();
+
+            if (source == null)
+                throw new IllegalArgumentException("Component " + componentId + " does not exist.");
+
+            if (!free.containsKey(destination))
+                throw new IllegalArgumentException("Device " + destination + " does not exist.");
+
+            if (source.equals(destination))
+                continue;
+
+            long size = sizes.getOrDefault(componentId, 1L);
+            pending.add(new Move(componentId, source, destination, size));
+            finalFree.merge(source, size, Long::sum);
+            finalFree.merge(destination, -size, Long::sum);
+        }
+
+        for (var entry : finalFree.entrySet()) {
+            if (entry.getValue() < 0)
+                throw new IllegalArgumentException("Target placement does not fit on device " + entry.getKey() + ".");
+        }
+
+        List<List<Move>> waves = new ArrayList<>();
+        long borrowedSpace = 0;
+
+        while (!pending.isEmpty()) {
+            List<Move> wave = new ArrayList<>();
+            List<Move> rest = new ArrayList<>();
+            // Free space left in this wave.
+            Map<DeviceId, Long> available = new HashMap<>(free);
+
+            // Cycles go first, since batch admission resolves them before anything else,
+            // although their moves leave as much free space as they can to the rest.
+            for (List<Move> cycle : findCycles(pending, rest)) {
+                long borrowed = takeCycle(cycle, available);
+
+                if (borrowed < 0) {
+                    rest.addAll(cycle);
+                } else {
+                    wave.addAll(cycle);
+                    borrowedSpace += borrowed;
+                }
+            }
+
+            // Moves leaving devices that other moves wait for go first, so that next wave can start them.
+            Set<DeviceId> awaited = new HashSet<>();
+            for (Move m : rest)
+                awaited.add(m.destinationDeviceId);
+
+            rest.sort(Comparator.comparing(m -> !awaited.contains(m.sourceDeviceId)));
+            pending = new ArrayList<>();
+
+            for (Move m : rest) {
+                long space = available.get(m.destinationDeviceId);
+
+                if (m.size <= space) {
+                    available.put(m.destinationDeviceId, space - m.size);
+                    wave.add(m);
+                } else {
+                    pending.add(m);
+                }
+            }
+
+            // Nothing fits, so the rest is left to run time.
+            if (wave.isEmpty()) {
+                wave = pending;
+                pending = new ArrayList<>();
+            }
+
+            for (Move m : wave) {
+                free.merge(m.sourceDeviceId, m.size, Long::sum);
+                free.merge(m.destinationDeviceId, -m.size, Long::sum);
+            }
+
+            waves.add(wave);
+        }
+
+        return new TransferPlan(waves, borrowedSpace);
+    }
+
+    // Splits moves into disjoint simple cycles, each one in order of the walk (every move leaves destination
+    // of the one before it), and the rest. Walk goes along unused moves, and goes back a move whenever it reaches
+    // device without any, since such move cannot be part of any cycle.
+    private static List<List<Move>> findCycles(List<Move> moves, List<Move> rest) {
+        Map<DeviceId, Deque<Move>> movesFrom = new LinkedHashMap<>();
+
+        for (Move m : moves)
+            movesFrom.computeIfAbsent(m.sourceDeviceId, d -> new ArrayDeque<>()).add(m);
+
+        List<List<Move>> cycles = new ArrayList<>();
+        Map<DeviceId, Integer> onPath = new HashMap<>();
+        List<Move> path = new ArrayList<>();
+
+        for (DeviceId start : movesFrom.keySet()) {
+            DeviceId v = start;
+
+            while (true) {
+                Deque<Move> out = movesFrom.get(v);
+
+                if (out == null || out.isEmpty()) {
+                    if (path.isEmpty())
+                        break;
+
+                    Move deadEnd = path.remove(path.size() - 1);
+                    rest.add(deadEnd);
+                    v = deadEnd.sourceDeviceId;
+                    onPath.remove(v);
+                    continue;
+                }
+
+                onPath.put(v, path.size());
+                Move m = out.poll();
+                path.add(m);
+                v = m.destinationDeviceId;
+
+                Integer cycleStart = onPath.get(v);
+                if (cycleStart != null) {
+                    List<Move> cycle = path.subList(cycleStart, path.size());
+
+                    for (Move entry : cycle)
+                        onPath.remove(entry.sourceDeviceId);
+
+                    cycles.add(new ArrayList<>(cycle));
+                    cycle.clear();
+                }
+            }
+        }
+
+        return cycles;
+    }
+
+    // Takes space for cycle the same way batch admission does: space after move leaving the same device first,
+    // and the rest from free space. Returns space taken after leaving moves, or -1 if cycle does not fit
+    // and nothing was taken.
+    private static long takeCycle(List<Move> cycle, Map<DeviceId, Long> available) {
+        int n = cycle.size();
+
+        for (int i = 0; i < n; i++) {
+            Move m = cycle.get(i);
+
+            if (m.size > available.get(m.destinationDeviceId) + cycle.get((i + 1) % n).size)
+                return -1;
+        }
+
+        long borrowed = 0;
+
+        for (int i = 0; i < n; i++) {
+            Move m = cycle.get(i);
+            long after = Math.min(m.size, cycle.get((i + 1) % n).size);
+
+            available.merge(m.destinationDeviceId, after - m.size, Long::sum);
+            borrowed += after;
+        }
+
+        return borrowed;
+    }
+
+    public List<List<Move>> getWaves() {
+        return waves;
+    }
+
+    public int getMoveCount() {
+        int cnt = 0;
+
+        for (List<Move> wave : waves)
+            cnt += wave.size();
+
+        return cnt;
+    }
+
+    // Space that cycles of plan take after components leaving their destinations, instead of free space.
+    public long getBorrowedSpace() {
+        return borrowedSpace;
+    }
+
+    // Executes waves one after another, with transfers created from moves by given function.
+    // If some transfer of a wave fails, waits for the rest of the wave, does not start the next one,
+    // and throws CompletionException with its failure.
+    public void execute(AsyncStorageSystem system, Function<Move, ? extends ComponentTransfer> transfers)
+            throws TransferException {
+        for (List<Move> wave : waves) {
+            List<ComponentTransfer> batch = new ArrayList<>(wave.size());
+
+            for (Move m : wave)
+                batch.add(transfers.apply(m));
+
+            CompletableFuture.allOf(system.executeAllAsync(batch).toArray(new CompletableFuture<?>[0])).join();
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package cp2023.solution;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Wait-for graph of devices. There is an edge from device u to device v
+// when some component currently placed on v waits in u.prepareWaitLineIn.
+// Every cycle is resolved as soon as it is closed, so the graph stays acyclic and devices are kept
+// in topological order (Marchetti-Spaccamela, Nanni, Rohnert). A new edge u -> v can only close a cycle
+// when v is before u in that order, and then only devices placed between v and u are searched and locked.
+// Edges are only added with lock held, but they can disappear at any time (when device hands out a spot),
+// which never breaks the order.
+// With components of different sizes, every device on a cycle has to have room for its incoming component in space
+// of the outgoing one plus free space. When it does not, all transfers waiting between devices of the cycle
+// are resolved together as a bundle (so one large component can be swapped for several small ones), after
+// dropping the least urgent ones that do not fit. When nothing is left, the edge closing the cycle is deferred:
+// its component leaves prepareWaitLineIn and the graph, and is tried again whenever space is handed out or another
+// component starts waiting, since either may make a bundle possible. Deferred components are part of bundles too.
+// Devices can be split into shards, each with its own graph, order and lock, under a coordinator graph.
+// While no transfer between different shards can wait, every cycle lies inside one shard, so edges of different
+// shards are added at the same time. Otherwise coordinator excludes all shards. An edge inside a shard is checked
+// by that shard first, and then coordinator searches all devices, without any order, for cycles through other shards.
+final class WaitForGraph {
+    private static final int COORDINATOR = -1;
+
+    private final ReentrantLock access = new ReentrantLock();
+    // Held for reading by shards and for writing by coordinator, or null if graph is not sharded.
+    private final ReentrantReadWriteLock coordination;
+    // Shard of this graph, or COORDINATOR.
+    private final int shard;
+    // Graphs of shards, only in coordinator.
+    private final WaitForGraph[] shards;
+    // Moved components between different shards that may wait, only counted in coordinator.
+    private final AtomicInteger crossShardWaiting = new AtomicInteger(0);
+    private final Device[] order;
+    // Marks are shared by all graphs of a system, since they mark the same devices.
+    private final AtomicInteger searchMarks;
+    private int searchMark = 0;
+    // Components whose edge was deferred. List is changed only with access, counts (also those of devices
+    // of cycle) are also changed with locks of devices of cycle held, so that anyone handing out space
+    // on them afterwards sees it.
+    private final ArrayList<Component> deferred = new ArrayList<>();
+    private volatile int deferredCnt = 0;
+
+    // Buffers reused by every search.
+    private final Device[] stack;
+    private final Device[] shifted;
+    private final ArrayList<Component> cycle = new ArrayList<>();
+    private final ArrayList<Device> cycleDevices = new ArrayList<>();
+    private final ArrayList<Device> lockOrder = new ArrayList<>();
+    private final ArrayList<Component> bundle = new ArrayList<>();
+    private final ArrayList<Component> cycleOutgoing = new ArrayList<>();
+    private final ArrayList<Component> resolved = new ArrayList<>();
+    // Space of bundle components coming to and leaving cycle device, by its cycleIndex.
+    private final long[] incomingSpace;
+    private final long[] outgoingSpace;
+
+    public WaitForGraph(Collection<Device> devices) {
+        this(devices, devices.size(), 0, null, new WaitForGraph[0], new AtomicInteger(0));
+    }
+
+    // Ordered devices of shard, or none in coordinator, whose searches can visit searchedDevices devices.
+    private WaitForGraph(Collection<Device> devices, int searchedDevices, int shard,
+                         ReentrantReadWriteLock coordination, WaitForGraph[] shards, AtomicInteger searchMarks) {
+        this.shard = shard;
+        this.coordination = coordination;
+        this.shards = shards;
+        this.searchMarks = searchMarks;
+        order = devices.toArray(new Device[0]);
+        stack = new Device[searchedDevices];
+        shifted = new Device[order.length];
+        incomingSpace = new long[searchedDevices];
+        outgoingSpace = new long[searchedDevices];
+
+        for (int i = 0; i < order.length; i++) {
+            order[i].shard = shard;
+            order[i].order = i;
+        }
+    }
+
+    // Coordinator of devices split into shards by deviceShards, which has to contain all of them.
+    public static WaitForGraph sharded(Collection<Device> devices, Map<Device, Integer> deviceShards) {
+        Map<Integer, List<Device>> shardDevices = new TreeMap<>();
+
+        for (Device d : devices) {
+            Integer shard = deviceShards.get(d);
+
+            if (shard == null)
+                throw new IllegalArgumentException("Attempt at creating StorageSystem with device without shard.");
+
+            shardDevices.computeIfAbsent(shard, s -> new ArrayList<>()).add(d);
+        }
+
+        ReentrantReadWriteLock coordination = new ReentrantReadWriteLock();
+        AtomicInteger searchMarks = new AtomicInteger(0);
+        WaitForGraph[] shards = new WaitForGraph[shardDevices.size()];
+        int i = 0;
+
+        for (List<Device> shard : shardDevices.values()) {
+            shards[i] = new WaitForGraph(shard, shard.size(), i, coordination, new WaitForGraph[0], searchMarks);
+            i++;
+        }
+
+        return new WaitForGraph(List.of(), devices.size(), COORDINATOR, coordination, shards, searchMarks);
+    }
+
+    // Exclusive access to whole graph. Permits signalled under it reach their continuations only after it is
+    // released, see Handoff.
+    public void acquireAccess() {
+        if (shard == COORDINATOR)
+            coordination.writeLock().lock();
+        else
+            acquireShardAccess();
+
+        Handoff.enterLocked();
+    }
+
+    // Access needed to add edge of transferredComponent to graph. Returns graph which has to be used until access
+    // is released: shard of the edge, if it is inside one and no edge between shards can exist, or whole graph.
+    public WaitForGraph acquireAccess(Component transferredComponent) {
+        Device source = transferredComponent.getCurrentDevice();
+        Device destination = transferredComponent.getDestinationDevice();
+
+        if (shard == COORDINATOR && source.shard == destination.shard) {
+            WaitForGraph local = shards[source.shard];
+            coordination.readLock().lock();
+
+            // Counter grows only with coordinator access, so it stays 0 as long as read lock is held.
+            if (crossShardWaiting.get() == 0) {
+                local.access.lock();
+                Handoff.enterLocked();
+                return local;
+            }
+
+            coordination.readLock().unlock();
+        }
+
+        acquireAccess();
+        return this;
+    }
+
+    private void acquireShardAccess() {
+        if (coordination != null)
+            coordination.readLock().lock();
+
+        access.lock();
+    }
+
+    public void releaseAccess() {
+        if (shard == COORDINATOR) {
+            coordination.writeLock().unlock();
+        } else {
+            access.unlock();
+
+            if (coordination != null)
+                coordination.readLock().unlock();
+        }
+
+        Handoff.exitLocked();
+    }
+
+    // Has to be called with access acquired, before moved component can start waiting in prepareWaitLineIn.
+    public void beforeWaiting(Component transferredComponent) {
+        if (shard != COORDINATOR || transferredComponent.isWaitingAcrossShards()
+                || transferredComponent.getCurrentDevice().shard == transferredComponent.getDestinationDevice().shard)
+            return;
+
+        transferredComponent.setWaitingAcrossShards(true);
+        crossShardWaiting.incrementAndGet();
+    }
+
+    // Called when moved component got permission to prepare, so it cannot wait anymore.
+    public void afterWaiting(Component transferredComponent) {
+        if (shard != COORDINATOR || !transferredComponent.isWaitingAcrossShards())
+            return;
+
+        transferredComponent.setWaitingAcrossShards(false);
+        crossShardWaiting.decrementAndGet();
+    }
+
+    public Boolean hasDeferred() {
+        if (deferredCnt > 0)
+            return true;
+
+        for (WaitForGraph s : shards) {
+            if (s.deferredCnt > 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    // Whether cycle of some deferred component goes through device. Read without access.
+    public static Boolean hasDeferred(Device device) {
+        return device.deferredMoves.get() > 0;
+    }
+
+    // Has to be called with access acquired.
+    public List<Component> getDeferred() {
+        List<Component> result = new ArrayList<>(deferred);
+
+        for (WaitForGraph s : shards)
+            result.addAll(s.deferred);
+
+        return result;
+    }
+
+    // Has to be called with access acquired. Returns true if component was deferred, and now is not.
+    public Boolean undefer(Component transferredComponent) {
+        if (deferred.remove(transferredComponent)) {
+            deferredCnt = deferred.size();
+            changeDeferredMoves(transferredComponent, -1);
+            transferredComponent.setDeferredOn(null);
+            return true;
+        }
+
+        for (WaitForGraph s : shards) {
+            if (s.undefer(transferredComponent))
+                return true;
+        }
+
+        return false;
+    }
+
+    // Has to be called with access acquired, after transferredComponent was added to destination.prepareWaitLineIn.
+    // Returns components of cycles closed by this new edge (and bundles around them), already removed from their
+    // prepareWaitLineIn, or deferred list, with space on their destinations reserved, or null if there are none.
+    // transferredComponent may still wait afterwards, or be deferred. Returned list is valid until access is released.
+    public List<Component> closeCycle(Component transferredComponent, Device destination, Device source,
+                                      HandoffPolicy policy) {
+        resolved.clear();
+
+        // Edge inside shard has to keep its order, and closes cycles inside it more cheaply.
+        if (shard == COORDINATOR && source.shard == destination.shard) {
+            List<Component> local = shards[source.shard].closeCycle(transferredComponent, destination, source, policy);
+
+            if (local != null)
+                resolved.addAll(local);
+        }
+
+        // If some component from found cycle got its space in the meantime, or only part of bundle was resolved,
+        // we have to look again.
+        while (transferredComponent.getWaitingIn() == destination
+                && (shard == COORDINATOR || destination.order > source.order)) {
+            if (!search(source, destination)) {
+                if (shard != COORDINATOR)
+                    reorder(source, destination);
+                break;
+            }
+
+            cycle.clear();
+            cycleDevices.clear();
+
+            for (Device d = destination; d != source; d = d.reachedFrom) {
+                cycle.add(d.reachedBy);
+                cycleDevices.add(d.reachedFrom);
+            }
+
+            // Every component takes space of the one before it, and the first one takes space of the last one.
+            Collections.reverse(cycle);
+            Collections.reverse(cycleDevices);
+            cycle.add(transferredComponent);
+            cycleDevices.add(destination);
+
+            claimCycle(transferredComponent, policy);
+        }
+
+        return resolved.isEmpty() ? null : resolved;
+    }
+
+    // Looks for path from start to end through devices of shard placed before end, or through all devices
+    // in coordinator. Locks one device at a time, only to read its prepareWaitLineIn.
+    private Boolean search(Device start, Device end) {
+        int mark = nextSearchMark();
+        int top = 0;
+
+        start.searchMark = mark;
+        stack[top++] = start;
+
+        while (top > 0) {
+            Device v = stack[--top];
+
+            v.acquireAccess();
+
+            try {
+                for (Component x : v.getPrepareWaitLineIn()) {
+                    Device w = x.getCurrentDevice();
+
+                    if (w == null || !canReach(w, end) || w.searchMark == mark)
+                        continue;
+
+                    w.searchMark = mark;
+                    w.reachedFrom = v;
+                    w.reachedBy = x;
+
+                    if (w == end)
+                        return true;
+
+                    stack[top++] = w;
+                }
+            } finally {
+                v.releaseAccess();
+            }
+        }
+
+        return false;
+    }
+
+    // Devices of other shards are not even read, since their graphs may be searching them at the same time.
+    private Boolean canReach(Device w, Device end) {
+        return shard == COORDINATOR || (w.shard == shard && w.order <= end.order);
+    }
+
+    private int nextSearchMark() {
+        searchMark = searchMarks.incrementAndGet();
+        return searchMark;
+    }
+
+    // After unsuccessful search from start, moves every device visited by it right after end,
+    // keeping relative order of both moved and not moved devices.
+    private void reorder(Device start, Device end) {
+        int mark = searchMark;
+        int from = start.order;
+        int to = end.order;
+        int kept = from;
+        int moved = 0;
+
+        for (int i = from; i <= to; i++) {
+            if (order[i].searchMark == mark)
+                shifted[moved++] = order[i];
+            else
+                order[kept++] = order[i];
+        }
+
+        for (int i = 0; i < moved; i++)
+            order[kept++] = shifted[i];
+
+        for (int i = from; i <= to; i++)
+            order[i].order = i;
+    }
+
+    // If all components of found cycle still wait in their prepareWaitLineIn, reserves space for them, or for
+    // bundle around cycle, or defers transferredComponent. Devices are locked in DeviceId order.
+    private void claimCycle(Component transferredComponent, HandoffPolicy policy) {
+        lockOrder.clear();
+        lockOrder.addAll(cycleDevices);
+        lockOrder.sort(Comparator.comparing(Device::getId));
+
+        for (Device d : lockOrder)
+            d.acquireAccess();
+
+        try {
+            for (int i = 0; i < cycle.size(); i++) {
+                if (cycle.get(i).getWaitingIn() != cycleDevices.get(i))
+                    return;
+            }
+
+            int last = cycle.size() - 1;
+            Boolean fits = true;
+
+            for (int i = 0; i < cycle.size() && fits; i++) {
+                Component outgoing = cycle.get(i == 0 ? last : i - 1);
+                fits = cycle.get(i).getSize() <= cycleDevices.get(i).getFreeSpace() + outgoing.getSize();
+            }
+
+            if (fits) {
+                for (int i = 0; i < cycle.size(); i++)
+                    cycleDevices.get(i).takeInCycle(cycle.get(i), List.of(cycle.get(i == 0 ? last : i - 1)));
+
+                resolved.addAll(cycle);
+            } else {
+                collectBundle();
+                dropUntilFits();
+
+                if (bundle.isEmpty()) {
+                    cycleDevices.get(last).removeFromPrepareWaitLineIn(transferredComponent);
+                    defer(transferredComponent);
+                } else {
+                    takeBundle();
+                }
+            }
+
+            // Components that left prepareWaitLineIn could have been keeping out others that fit.
+            for (Device d : cycleDevices)
+                d.admitWaiting(policy);
+        } finally {
+            for (Device d : lockOrder)
+                d.releaseAccess();
+        }
+    }
+
+    // Component moving inside one shard is deferred there, so that its shard can find bundles with it on its own.
+    private void defer(Component transferredComponent) {
+        WaitForGraph home = this;
+        Device source = transferredComponent.getCurrentDevice();
+
+        if (shard == COORDINATOR && source.shard == transferredComponent.getDestinationDevice().shard)
+            home = shards[source.shard];
+
+        home.deferred.add(transferredComponent);
+        home.deferredCnt = home.deferred.size();
+        transferredComponent.setDeferredOn(new ArrayList<>(cycleDevices));
+        changeDeferredMoves(transferredComponent, 1);
+    }
+
+    // Only more space on some device of cycle can make bundle around it fit (new edges are handled by their own
+    // transfers), so deferred component is counted on all of them.
+    private static void changeDeferredMoves(Component transferredComponent, int change) {
+        for (Device d : transferredComponent.getDeferredOn())
+            d.deferredMoves.addAndGet(change);
+    }
+
+    // Bundle are components moving between devices of cycle that wait in their prepareWaitLineIn, or are deferred.
+    private void collectBundle() {
+        int mark = nextSearchMark();
+
+        for (int i = 0; i < cycleDevices.size(); i++) {
+            cycleDevices.get(i).searchMark = mark;
+            cycleDevices.get(i).cycleIndex = i;
+            incomingSpace[i] = 0;
+            outgoingSpace[i] = 0;
+        }
+
+        bundle.clear();
+
+        for (Device d : cycleDevices) {
+            for (Component x : d.getPrepareWaitLineIn()) {
+                if (x.getCurrentDevice() != null && x.getCurrentDevice().searchMark == mark)
+                    bundle.add(x);
+            }
+        }
+
+        for (Component x : getDeferred()) {
+            if (x.getCurrentDevice().searchMark == mark && x.getDestinationDevice().searchMark == mark)
+                bundle.add(x);
+        }
+
+        for (Component x : bundle) {
+            incomingSpace[x.getDestinationDevice().cycleIndex] += x.getSize();
+            outgoingSpace[x.getCurrentDevice().cycleIndex] += x.getSize();
+        }
+    }
+
+    // Drops the least urgent component coming to a device without room for all of them, as long as there is one.
+    // Dropping it leaves less space on its source, so it goes around until nothing changes.
+    private void dropUntilFits() {
+        Boolean dropped = true;
+
+        while (dropped) {
+            dropped = false;
+
+            for (int i = 0; i < cycleDevices.size(); i++) {
+                Device d = cycleDevices.get(i);
+
+                while (incomingSpace[i] > d.getFreeSpace() + outgoingSpace[i]) {
+                    Component leastUrgent = null;
+
+                    for (Component x : bundle) {
+                        if (x.getDestinationDevice() == d && (leastUrgent == null || WaitLine.before(leastUrgent, x)))
+                            leastUrgent = x;
+                    }
+
+                    bundle.remove(leastUrgent);
+                    incomingSpace[i] -= leastUrgent.getSize();
+                    outgoingSpace[leastUrgent.getCurrentDevice().cycleIndex] -= leastUrgent.getSize();
+                    dropped = true;
+                }
+            }
+        }
+    }
+
+    private void takeBundle() {
+        for (Device d : cycleDevices) {
+            cycleOutgoing.clear();
+
+            for (Component x : bundle) {
+                if (x.getCurrentDevice() == d)
+                    cycleOutgoing.add(x);
+            }
+
+            for (Component x : bundle) {
+                if (x.getDestinationDevice() == d)
+                    d.takeInCycle(x, cycleOutgoing);
+            }
+        }
+
+        for (Component x : bundle)
+            undefer(x);
+
+        resolved.addAll(bundle);
+    }
+}
@@ -0,0 +1,176 @@
+package cp2023.solution;
+
+import cp2023.base.PrioritizedComponentTransfer;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Components waiting for a spot on one device, handed out earliest due time first.
+// Component that came at time t is due at t + DEFAULT_WAIT, moved earlier by PRIORITY_STEP per level of priority,
+// or at its deadline if it has one. Since everyone is compared by absolute time, components get more urgent
+// just by waiting (aging), and those with equal priority and no deadline still go in arrival order.
+// Binary heap indexed by Component.waitLineIndex, so that any component can be removed in logarithmic time.
+final class WaitLine implements Iterable<Component> {
+    private static final long DEFAULT_WAIT = 1_000_000_000L;
+    private static final long PRIORITY_STEP = 10_000_000L;
+
+    private Component[] heap = new Component[8];
+    private int size = 0;
+    // Breaks ties between components with the same due time.
+    private long arrivals = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public Boolean isEmpty() {
+        return size == 0;
+    }
+
+    // now is current System.nanoTime().
+    public void add(Component component, long now) {
+        long deadline = component.getDeadline();
+        long due = now + DEFAULT_WAIT - component.getPriority() * PRIORITY_STEP;
+
+        if (deadline != PrioritizedComponentTransfer.NO_DEADLINE && deadline - due < 0)
+            due = deadline;
+
+        component.setDue(due);
+        component.setArrival(arrivals++);
+        insert(component);
+    }
+
+    // Puts back component that left this line without being let in, keeping its due time and arrival,
+    // so that it does not lose what it gained by waiting.
+    public void addAgain(Component component) {
+        insert(component);
+    }
+
+    private void insert(Component component) {
+        if (size == heap.length)
+            heap = Arrays.copyOf(heap, size * 2);
+
+        heap[size] = component;
+        component.setWaitLineIndex(size);
+        size++;
+        siftUp(size - 1);
+    }
+
+    // Returns the most urgent component, without removing it, or null if no one waits.
+    public Component peek() {
+        return size == 0 ? null : heap[0];
+    }
+
+    // Returns the most urgent component or null if no one waits.
+    public Component poll() {
+        if (size == 0)
+            return null;
+
+        Component first = heap[0];
+        removeAt(0);
+
+        return first;
+    }
+
+    public Boolean remove(Component component) {
+        int i = component.getWaitLineIndex();
+
+        if (i < 0 || i >= size || heap[i] != component)
+            return false;
+
+        removeAt(i);
+
+        return true;
+    }
+
+    // Iterates in no particular order.
+    @Override
+    public Iterator<Component> iterator() {
+        return new Iterator<>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Component next() {
+                if (next >= size)
+                    throw new NoSuchElementException();
+
+                return heap[next++];
+            }
+        };
+    }
+
+    private void removeAt(int i) {
+        Component removed = heap[i];
+        size--;
+
+        if (i != size) {
+            heap[i] = heap[size];
+            heap[i].setWaitLineIndex(i);
+
+            if (!siftUp(i))
+                siftDown(i);
+        }
+
+        heap[size] = null;
+        removed.setWaitLineIndex(-1);
+    }
+
+    // Returns true if element moved.
+    private Boolean siftUp(int i) {
+        int start = i;
+        Component c = heap[i];
+
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+
+            if (!before(c, heap[parent]))
+                break;
+
+            heap[i] = heap[parent];
+            heap[i].setWaitLineIndex(i);
+            i = parent;
+        }
+
+        heap[i] = c;
+        c.setWaitLineIndex(i);
+
+        return i != start;
+    }
+
+    private void siftDown(int i) {
+        Component c = heap[i];
+
+        while (true) {
+            int child = 2 * i + 1;
+
+            if (child >= size)
+                break;
+
+            if (child + 1 < size && before(heap[child + 1], heap[child]))
+                child++;
+
+            if (!before(heap[child], c))
+                break;
+
+            heap[i] = heap[child];
+            heap[i].setWaitLineIndex(i);
+            i = child;
+        }
+
+        heap[i] = c;
+        c.setWaitLineIndex(i);
+    }
+
+    // Returns true if a is more urgent than b. Both have to be added to the same line, at least once.
+    static Boolean before(Component a, Component b) {
+        long diff = a.getDue() - b.getDue();
+
+        return diff < 0 || (diff == 0 && a.getArrival() < b.getArrival());
+    }
+}